@@ -0,0 +1,78 @@
+package dadfarnia.ir.MDPF.benchmarks;
+
+import dadfarnia.ir.MDPF.BDDService;
+import net.sf.javabdd.BDD;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Condition parsing and the weaker-than check, over random conditions of the given size.
+ * Both are memoized by BDDService, so every invocation gets new BDDServices: parsing one that has not seen the
+ * conditions, the weaker-than check one that has built them but not compared them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BDDServiceBenchmark {
+    @Param({"16"})
+    public int features;
+
+    @Param({"3", "8"})
+    public int conditionSize;
+
+    private static final int CONDITIONS = 256;
+
+    private String[] names;
+    private String[] prefixConditions;
+    private BDDService parsing;
+    private BDDService checking;
+    private BDD[] conditions;
+
+    @Setup
+    public void setup(){
+        names = new String[features];
+        for(int f = 0; f < features; f++)
+            names[f] = "f" + f;
+        FamilyGenerator generator = new FamilyGenerator(1, 1, features, conditionSize, 1, 1);
+        prefixConditions = new String[CONDITIONS];
+        for(int i = 0; i < CONDITIONS; i++)
+            prefixConditions[i] = BDDService.infixToPrefix(generator.condition());
+    }
+
+    @Setup(Level.Invocation)
+    public void clearMemos(){
+        parsing = new BDDService(names);
+        checking = new BDDService(names);
+        conditions = new BDD[CONDITIONS];
+        for(int i = 0; i < CONDITIONS; i++)
+            conditions[i] = checking.expressionToBDD(new StringBuilder(prefixConditions[i]));
+    }
+
+    @Benchmark
+    public void expressionToBDD(Blackhole blackhole){
+        for(String condition : prefixConditions)
+            blackhole.consume(parsing.expressionToBDD(new StringBuilder(condition)));
+    }
+
+    @Benchmark
+    public void isWeaker(Blackhole blackhole){
+        for(int i = 0; i < CONDITIONS; i++)
+            blackhole.consume(checking.isWeaker(conditions[i], conditions[(i * 7 + 1) % CONDITIONS]));
+    }
+}
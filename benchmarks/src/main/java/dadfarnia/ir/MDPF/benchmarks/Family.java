@@ -0,0 +1,48 @@
+package dadfarnia.ir.MDPF.benchmarks;
+
+import dadfarnia.ir.MDPF.MDPF;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A random MDPF family shared by the benchmarks of one scale point, set the scale with -p on the JMH command line,
+ * <i>e.g. -p states=10000 -p features=16 -p conditionSize=4</i>
+ * @see FamilyGenerator
+ */
+@State(Scope.Benchmark)
+public class Family {
+    @Param({"100", "1000"})
+    public int states;
+
+    @Param({"3"})
+    public int branching;
+
+    @Param({"8"})
+    public int features;
+
+    @Param({"2"})
+    public int conditionSize;
+
+    @Param({"2"})
+    public int actions;
+
+    public File file;
+    public File snapshot;
+    public FamilyGenerator generator;
+    public MDPF model;
+
+    @Setup
+    public void setup() throws IOException{
+        generator = new FamilyGenerator(states, branching, features, conditionSize, actions, 1);
+        file = generator.writeTemp();
+        model = new MDPF(file.getPath());
+        snapshot = File.createTempFile("MDPFFamily", ".mdpf");
+        snapshot.deleteOnExit();
+        model.save(snapshot.getPath());
+    }
+}
@@ -0,0 +1,123 @@
+package dadfarnia.ir.MDPF.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Writes random MDPF families in the text format read by new MDPF(fileName). <br>
+ * Features are named f0, f1, ..., states s0, s1, ... and actions a0, a1, ...
+ * Every state has the given number of actions, out of actions+1 labels so every label is missing from some states,
+ * and every action leads to branching random successors,
+ * with probabilities of an action summing to one. Application conditions are random formulas over
+ * conditionSize feature literals joined by &amp; and |, so larger sizes give larger bdds.
+ */
+public class FamilyGenerator {
+    private int states;
+    private int branching;
+    private int features;
+    private int conditionSize;
+    private int actions;
+    private Random random;
+
+    /**
+     * @param states int, number of states
+     * @param branching int, number of successors of every action
+     * @param features int, number of features (propositions)
+     * @param conditionSize int, number of feature literals in every application condition
+     * @param actions int, number of actions of every state
+     * @param seed long, same seed gives the same family
+     */
+    public FamilyGenerator(int states, int branching, int features, int conditionSize, int actions, long seed){
+        this.states = states;
+        this.branching = branching;
+        this.features = features;
+        this.conditionSize = conditionSize;
+        this.actions = actions;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Write the family to a temporary file that is deleted on exit.
+     * @return File
+     */
+    public File writeTemp() throws IOException{
+        File file = File.createTempFile("MDPFFamily", ".txt");
+        file.deleteOnExit();
+        write(file);
+        return file;
+    }
+
+    /**
+     * @param file File, overwritten
+     */
+    public void write(File file) throws IOException{
+        BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+        try {
+            for(int f = 0; f < features; f++)
+                writer.write((f == 0 ? "f" : " f") + f);
+            writer.newLine();
+            for(int s = 0; s < states; s++)
+                writer.write((s == 0 ? "s" : " s") + s);
+            writer.newLine();
+            double[] weights = new double[branching];
+            StringBuilder line = new StringBuilder();
+            for(int s = 0; s < states; s++){
+                int skip = random.nextInt(actions + 1);
+                for(int a = 0; a <= actions; a++){
+                    if(a == skip)
+                        continue;
+                    double total = 0;
+                    for(int i = 0; i < branching; i++){
+                        weights[i] = 1 + random.nextInt(100);
+                        total += weights[i];
+                    }
+                    for(int i = 0; i < branching; i++){
+                        line.setLength(0);
+                        line.append('s').append(s).append(" s").append(random.nextInt(states))
+                                .append(" a").append(a).append(' ').append(weights[i] / total).append(' ');
+                        appendCondition(line);
+                        writer.write(line.toString());
+                        writer.newLine();
+                    }
+                }
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * @return a random application condition in infix form
+     */
+    public String condition(){
+        StringBuilder result = new StringBuilder();
+        appendCondition(result);
+        return result.toString();
+    }
+
+    private void appendCondition(StringBuilder out){
+        for(int i = 0; i < conditionSize; i++){
+            if(i > 0)
+                out.append(random.nextInt(3) == 0 ? " | " : " & ");
+            if(random.nextBoolean())
+                out.append('~');
+            out.append('f').append(random.nextInt(features));
+        }
+    }
+
+    /**
+     * Write a family from the command line: file states branching features conditionSize actions [seed]
+     */
+    public static void main(String[] args) throws IOException{
+        if(args.length < 6){
+            System.out.println("Usage: FamilyGenerator file states branching features conditionSize actions [seed]");
+            return;
+        }
+        long seed = args.length > 6 ? Long.parseLong(args[6]) : 1;
+        new FamilyGenerator(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+                Integer.parseInt(args[4]), Integer.parseInt(args[5]), seed).write(new File(args[0]));
+    }
+}
@@ -0,0 +1,32 @@
+package dadfarnia.ir.MDPF.benchmarks;
+
+import dadfarnia.ir.MDPF.MDPF;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading a model from the text format and from a binary snapshot.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LoadBenchmark {
+    @Benchmark
+    public MDPF loadText(Family family){
+        return new MDPF(family.file.getPath());
+    }
+
+    @Benchmark
+    public MDPF loadSnapshot(Family family){
+        return new MDPF(family.snapshot.getPath());
+    }
+}
@@ -0,0 +1,40 @@
+package dadfarnia.ir.MDPF.benchmarks;
+
+import dadfarnia.ir.MDPF.ResultSet;
+import dadfarnia.ir.MDPF.State;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * State.multiply of every state of the family with the result of $a0, the step of next and until.
+ */
+@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MultiplyBenchmark {
+    private ResultSet input;
+
+    @Setup
+    public void setup(Family family){
+        input = family.model.sat("$a0");
+    }
+
+    @Benchmark
+    public void multiply(Family family, Blackhole blackhole){
+        for(State state : family.model.getStates())
+            blackhole.consume(state.multiply(input));
+    }
+}
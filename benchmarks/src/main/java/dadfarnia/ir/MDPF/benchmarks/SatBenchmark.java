@@ -0,0 +1,34 @@
+package dadfarnia.ir.MDPF.benchmarks;
+
+import dadfarnia.ir.MDPF.ResultSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MDPF.sat of one formula per operator on the family.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SatBenchmark {
+    @Param({"$a0", "~$a0", "&$a0$a1", "@$a0", "U3$a0$a1", "U$a0$a1"})
+    public String formula;
+
+    @Benchmark
+    public ResultSet sat(Family family){
+        return family.model.sat(formula);
+    }
+}
@@ -0,0 +1,621 @@
+package dadfarnia.ir.MDPF;
+import net.sf.javabdd.BDD;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Algebraic decision diagrams (ADDs, multi-terminal bdds) over the propositions of a BDDService. <br>
+ * An ADD maps every product (valuation of the propositions) to a double. Diagrams are int node ids of this
+ * manager and are reduced and shared, so equal functions have equal ids and products with the same value
+ * share one terminal whatever conditions produced them. Variables are ordered by proposition index, like the bdds.
+ * Variables past the propositions are free for other uses, e.g. the state and action bits of SymbolicModelChecker.
+ */
+public class ADD {
+    /**
+     * Binary operations of apply
+     */
+    public static final int PLUS = 0;
+    public static final int TIMES = 1;
+    public static final int MIN = 2;
+    public static final int MAX = 3;
+    /**
+     * f where g is nonzero, +infinity where g is zero
+     */
+    public static final int MASK = 4;
+    /**
+     * |f - g|
+     */
+    public static final int DISTANCE = 5;
+
+    private static final int NOT = 6;
+    private static final int NON_ZERO = 7;
+    private static final int FINITE = 8;
+
+    /**
+     * var of terminal nodes, below every proposition
+     */
+    private static final int TERMINAL = Integer.MAX_VALUE;
+    private static final int CACHE_SIZE = 1 << 18;
+    /**
+     * Least number of nodes at which collectIfGrown collects.
+     */
+    private static final int COLLECT_SIZE = 1 << 16;
+
+    private int[] var;
+    private int[] low;
+    private int[] high;
+    private double[] value;
+    private int size;
+
+    /**
+     * Unique table of inner nodes, open addressing, slots hold node id + 1.
+     */
+    private int[] unique;
+    private int uniqueCount;
+    private HashMap<Long, Integer> terminals;
+
+    /**
+     * Lossy cache of operation results, a slot per hash of (op, f, g).
+     */
+    private int[] cacheOp;
+    private int[] cacheF;
+    private int[] cacheG;
+    private int[] cacheResult;
+
+    private int zero;
+    private int one;
+    /**
+     * Number of nodes at which collectIfGrown collects, twice the nodes left by the last collection.
+     */
+    private int collectAt = COLLECT_SIZE;
+
+    /**
+     * Constructor of an empty manager
+     */
+    public ADD(){
+        var = new int[1024];
+        low = new int[1024];
+        high = new int[1024];
+        value = new double[1024];
+        unique = new int[2048];
+        terminals = new HashMap<Long, Integer>();
+        cacheOp = new int[CACHE_SIZE];
+        Arrays.fill(cacheOp, -1);
+        cacheF = new int[CACHE_SIZE];
+        cacheG = new int[CACHE_SIZE];
+        cacheResult = new int[CACHE_SIZE];
+        zero = constant(0);
+        one = constant(1);
+    }
+
+    /**
+     * @return constant 0 diagram
+     */
+    public int getZero(){
+        return zero;
+    }
+
+    /**
+     * @return constant 1 diagram
+     */
+    public int getOne(){
+        return one;
+    }
+
+    /**
+     * @param v double
+     * @return constant diagram of v
+     */
+    public int constant(double v){
+        if(v == 0)
+            v = 0;    // -0.0 and 0.0 share a terminal
+        Long key = Double.doubleToLongBits(v);
+        Integer node = terminals.get(key);
+        if(node != null)
+            return node;
+        int result = allocate(TERMINAL, -1, -1);
+        value[result] = v;
+        terminals.put(key, result);
+        return result;
+    }
+
+    /**
+     * Diagram "if var then high else low", reduced.
+     * @param v int, index of proposition
+     * @param l int, else branch
+     * @param h int, then branch
+     * @return int, node id
+     */
+    public int node(int v, int l, int h){
+        if(l == h)
+            return l;
+        int mask = unique.length - 1;
+        int slot = hash(v, l, h) & mask;
+        while(unique[slot] != 0){
+            int n = unique[slot] - 1;
+            if(var[n] == v && low[n] == l && high[n] == h)
+                return n;
+            slot = (slot + 1) & mask;
+        }
+        int result = allocate(v, l, h);
+        unique[slot] = result + 1;
+        uniqueCount++;
+        if(uniqueCount * 2 > unique.length)
+            rehash();
+        return result;
+    }
+
+    /**
+     * @param f int, node id
+     * @return boolean, true for constant diagrams
+     */
+    public boolean isConstant(int f){
+        return var[f] == TERMINAL;
+    }
+
+    /**
+     * @param f int, constant diagram
+     * @return double, its value
+     */
+    public double getValue(int f){
+        return value[f];
+    }
+
+    /**
+     * @return number of nodes of the manager
+     */
+    public int size(){
+        return size;
+    }
+
+    /**
+     * Drop the nodes no root reaches. The nodes left are renumbered in order, so children stay below their parents,
+     * and the roots are updated in place: every other node id of this manager is invalid afterwards. The operation
+     * cache is cleared.
+     * @param roots int[]s of node ids to keep
+     * @return int, number of nodes dropped
+     */
+    public int collect(int[]... roots){
+        boolean[] live = new boolean[size];
+        live[zero] = true;
+        live[one] = true;
+        for(int[] array : roots){
+            for(int f : array)
+                live[f] = true;
+        }
+        for(int n = size - 1; n >= 0; n--){    // parents are allocated after their children
+            if(live[n] && var[n] != TERMINAL){
+                live[low[n]] = true;
+                live[high[n]] = true;
+            }
+        }
+        int[] renumber = new int[size];
+        int count = 0;
+        int inner = 0;
+        terminals.clear();
+        for(int n = 0; n < size; n++){
+            if(!live[n])
+                continue;
+            boolean terminal = var[n] == TERMINAL;
+            var[count] = var[n];
+            low[count] = terminal ? -1 : renumber[low[n]];
+            high[count] = terminal ? -1 : renumber[high[n]];
+            value[count] = value[n];
+            if(terminal)
+                terminals.put(Double.doubleToLongBits(value[n]), count);
+            else
+                inner++;
+            renumber[n] = count++;
+        }
+        int dropped = size - count;
+        size = count;
+        zero = renumber[zero];
+        one = renumber[one];
+        for(int[] array : roots){
+            for(int i = 0; i < array.length; i++)
+                array[i] = renumber[array[i]];
+        }
+        int length = 2048;
+        while(length < 2 * inner)
+            length *= 2;
+        fillUnique(length);
+        uniqueCount = inner;
+        Arrays.fill(cacheOp, -1);
+        collectAt = Math.max(COLLECT_SIZE, 2 * size);
+        return dropped;
+    }
+
+    /**
+     * Collect, see collect, once the manager holds twice the nodes the last collection left.
+     * @param roots int[]s of node ids to keep
+     * @return int, number of nodes dropped, 0 if the manager did not grow enough
+     */
+    public int collectIfGrown(int[]... roots){
+        return size < collectAt ? 0 : collect(roots);
+    }
+
+    /**
+     * Apply a binary operation pointwise, op is one of PLUS, TIMES, MIN, MAX, MASK and DISTANCE.
+     * @param op int
+     * @param f int, node id
+     * @param g int, node id
+     * @return int, node id of op(f, g)
+     */
+    public int apply(int op, int f, int g){
+        if(isConstant(f) && isConstant(g))
+            return constant(compute(op, value[f], value[g]));
+        switch(op){
+            case PLUS:
+                if(f == zero)
+                    return g;
+                if(g == zero)
+                    return f;
+                break;
+            case TIMES:
+                if(f == zero || g == zero)
+                    return zero;
+                if(f == one)
+                    return g;
+                if(g == one)
+                    return f;
+                break;
+            case MIN:
+            case MAX:
+                if(f == g)
+                    return f;
+                break;
+            case MASK:
+                if(isConstant(g))
+                    return value[g] != 0 ? f : constant(Double.POSITIVE_INFINITY);
+                break;
+            case DISTANCE:
+                if(f == g)
+                    return zero;
+                break;
+        }
+        if(op != MASK && f > g){
+            int t = f;
+            f = g;
+            g = t;
+        }
+        int slot = cacheSlot(op, f, g);
+        if(cacheOp[slot] == op && cacheF[slot] == f && cacheG[slot] == g)
+            return cacheResult[slot];
+        int v = Math.min(var[f], var[g]);
+        int fl = var[f] == v ? low[f] : f;
+        int fh = var[f] == v ? high[f] : f;
+        int gl = var[g] == v ? low[g] : g;
+        int gh = var[g] == v ? high[g] : g;
+        int l = apply(op, fl, gl);
+        int h = apply(op, fh, gh);
+        int result = node(v, l, h);
+        cacheOp[slot] = op;
+        cacheF[slot] = f;
+        cacheG[slot] = g;
+        cacheResult[slot] = result;
+        return result;
+    }
+
+    /**
+     * @param f int, node id
+     * @return 1 where f is 0, 0 elsewhere
+     */
+    public int not(int f){
+        return map(NOT, f);
+    }
+
+    /**
+     * @param f int, node id
+     * @return 1 where f is not 0, 0 elsewhere
+     */
+    public int nonZero(int f){
+        return map(NON_ZERO, f);
+    }
+
+    /**
+     * @param f int, node id
+     * @return f with infinite values replaced by 0
+     */
+    public int finite(int f){
+        return map(FINITE, f);
+    }
+
+    /**
+     * @param f int, node id
+     * @return double, largest value of f
+     */
+    public double maxValue(int f){
+        double result = Double.NEGATIVE_INFINITY;
+        for(double v : values(f))
+            result = Math.max(result, v);
+        return result;
+    }
+
+    /**
+     * @param f int, node id
+     * @return distinct values of f, in increasing order
+     */
+    public double[] values(int f){
+        HashSet<Integer> visited = new HashSet<Integer>();
+        ArrayList<Integer> leaves = new ArrayList<Integer>();
+        collectLeaves(f, visited, leaves);
+        double[] result = new double[leaves.size()];
+        for(int i = 0; i < result.length; i++)
+            result[i] = value[leaves.get(i)];
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * @param f int, node id
+     * @param bound Formula, P~p[T] node
+     * @return 1 where the value of f satisfies the bound, 0 elsewhere
+     */
+    public int threshold(int f, Formula bound){
+        return threshold(f, bound, new HashMap<Integer, Integer>());
+    }
+
+    private int threshold(int f, Formula bound, HashMap<Integer, Integer> memo){
+        if(isConstant(f))
+            return bound.accepts(value[f]) ? one : zero;
+        Integer result = memo.get(f);
+        if(result == null){
+            result = node(var[f], threshold(low[f], bound, memo), threshold(high[f], bound, memo));
+            memo.put(f, result);
+        }
+        return result;
+    }
+
+    /**
+     * @param v int, index of variable
+     * @return 1 where v is true, 0 elsewhere
+     */
+    public int variable(int v){
+        return node(v, zero, one);
+    }
+
+    /**
+     * Diagram of one assignment of some variables.
+     * @param vars int[], indices of variables, increasing
+     * @param values boolean[], value of each variable
+     * @return 1 where vars have values, 0 elsewhere
+     */
+    public int cube(int[] vars, boolean[] values){
+        int f = one;
+        for(int i = vars.length - 1; i >= 0; i--)
+            f = values[i] ? node(vars[i], zero, f) : node(vars[i], f, zero);
+        return f;
+    }
+
+    /**
+     * Eliminate variables, combining both values of each with op: PLUS sums over them, MIN and MAX take the
+     * extreme value.
+     * @param op int, PLUS, MIN or MAX
+     * @param f int, node id
+     * @param vars int[], indices of variables, increasing
+     * @return int, node id independent of vars
+     */
+    public int abstractVariables(int op, int f, int[] vars){
+        return abstractVariables(op, f, vars, 0, new HashMap<Long, Integer>());
+    }
+
+    private int abstractVariables(int op, int f, int[] vars, int k, HashMap<Long, Integer> memo){
+        if(k == vars.length)
+            return f;
+        Long key = ((long) f << 32) | k;
+        Integer result = memo.get(key);
+        if(result != null)
+            return result;
+        if(vars[k] < var[f]){    // f does not depend on vars[k], both values are f
+            int r = abstractVariables(op, f, vars, k + 1, memo);
+            result = apply(op, r, r);
+        }
+        else if(vars[k] == var[f])
+            result = apply(op, abstractVariables(op, low[f], vars, k + 1, memo), abstractVariables(op, high[f], vars, k + 1, memo));
+        else
+            result = node(var[f], abstractVariables(op, low[f], vars, k, memo), abstractVariables(op, high[f], vars, k, memo));
+        memo.put(key, result);
+        return result;
+    }
+
+    /**
+     * Rename variables, the renaming has to keep the order of the variables f depends on.
+     * @param f int, node id
+     * @param map int[], new index of every variable index, variables past its end keep theirs
+     * @return int, node id
+     */
+    public int rename(int f, int[] map){
+        return rename(f, map, new HashMap<Integer, Integer>());
+    }
+
+    private int rename(int f, int[] map, HashMap<Integer, Integer> memo){
+        if(isConstant(f))
+            return f;
+        Integer result = memo.get(f);
+        if(result == null){
+            result = node(var[f] < map.length ? map[var[f]] : var[f], rename(low[f], map, memo), rename(high[f], map, memo));
+            memo.put(f, result);
+        }
+        return result;
+    }
+
+    /**
+     * Fix some variables.
+     * @param f int, node id
+     * @param vars int[], indices of variables
+     * @param values boolean[], value of each variable
+     * @return int, node id of f where vars have values
+     */
+    public int cofactor(int f, int[] vars, boolean[] values){
+        HashMap<Integer, Boolean> assignment = new HashMap<Integer, Boolean>();
+        for(int i = 0; i < vars.length; i++)
+            assignment.put(vars[i], values[i]);
+        return cofactor(f, assignment, new HashMap<Integer, Integer>());
+    }
+
+    private int cofactor(int f, HashMap<Integer, Boolean> assignment, HashMap<Integer, Integer> memo){
+        if(isConstant(f))
+            return f;
+        Integer result = memo.get(f);
+        if(result == null){
+            Boolean v = assignment.get(var[f]);
+            if(v != null)
+                result = cofactor(v ? high[f] : low[f], assignment, memo);
+            else
+                result = node(var[f], cofactor(low[f], assignment, memo), cofactor(high[f], assignment, memo));
+            memo.put(f, result);
+        }
+        return result;
+    }
+
+    /**
+     * 0/1 diagram of a bdd. The nodes of b are walked inside a query of bddService, so the walk holds no reference
+     * to them once it returns.
+     * @param b BDD
+     * @param bddService BDDService of the propositions
+     * @return int, node id
+     * @see BDDService#child(BDD, boolean)
+     */
+    public int fromBDD(BDD b, BDDService bddService){
+        bddService.beginQuery();
+        try {
+            return fromBDD(b, bddService, new HashMap<BDD, Integer>());
+        }finally{
+            bddService.endQuery();
+        }
+    }
+
+    private int fromBDD(BDD b, BDDService bddService, HashMap<BDD, Integer> memo){
+        if(b.isZero())
+            return zero;
+        if(b.isOne())
+            return one;
+        Integer known = memo.get(b);
+        if(known != null)
+            return known;
+        int result = node(b.var(), fromBDD(bddService.child(b, false), bddService, memo),
+                fromBDD(bddService.child(b, true), bddService, memo));
+        memo.put(b, result);
+        return result;
+    }
+
+    /**
+     * Bdd of the products where f has value v.
+     * @param f int, node id
+     * @param v double
+     * @param bddService BDDService of the propositions
+     * @return BDD
+     */
+    public BDD toBDD(int f, double v, BDDService bddService){
+        return toBDD(f, v, bddService, new HashMap<Integer, BDD>());
+    }
+
+    private BDD toBDD(int f, double v, BDDService bddService, HashMap<Integer, BDD> memo){
+        if(isConstant(f))
+            return value[f] == v ? bddService.getOne() : bddService.getZero();
+        BDD result = memo.get(f);
+        if(result == null){
+            result = bddService.node(var[f], toBDD(low[f], v, bddService, memo), toBDD(high[f], v, bddService, memo));
+            memo.put(f, result);
+        }
+        return result;
+    }
+
+    /**
+     * Row form of f: a w/p transition per nonzero value p of f, w being the products where f is p.
+     * @param f int, node id
+     * @param bddService BDDService of the propositions
+     * @return ArrayList of Transitions, in increasing order of probability
+     */
+    public ArrayList<Transition> toTransitions(int f, BDDService bddService){
+        ArrayList<Transition> result = new ArrayList<Transition>();
+        for(double v : values(f)){
+            if(v != 0)
+                result.add(new Transition(toBDD(f, v, bddService), v, bddService));
+        }
+        return result;
+    }
+
+    private int map(int op, int f){
+        if(isConstant(f))
+            return constant(compute(op, value[f], 0));
+        int slot = cacheSlot(op, f, -1);
+        if(cacheOp[slot] == op && cacheF[slot] == f)
+            return cacheResult[slot];
+        int result = node(var[f], map(op, low[f]), map(op, high[f]));
+        cacheOp[slot] = op;
+        cacheF[slot] = f;
+        cacheG[slot] = -1;
+        cacheResult[slot] = result;
+        return result;
+    }
+
+    private static double compute(int op, double a, double b){
+        switch(op){
+            case PLUS: return a + b;
+            case TIMES: return a * b;
+            case MIN: return Math.min(a, b);
+            case MAX: return Math.max(a, b);
+            case MASK: return b != 0 ? a : Double.POSITIVE_INFINITY;
+            case DISTANCE: return Math.abs(a - b);
+            case NOT: return a == 0 ? 1 : 0;
+            case NON_ZERO: return a != 0 ? 1 : 0;
+            case FINITE: return Double.isInfinite(a) ? 0 : a;
+            default: throw new IllegalArgumentException("Unknown operation " + op);
+        }
+    }
+
+    private void collectLeaves(int f, HashSet<Integer> visited, ArrayList<Integer> leaves){
+        if(!visited.add(f))
+            return;
+        if(isConstant(f)){
+            leaves.add(f);
+            return;
+        }
+        collectLeaves(low[f], visited, leaves);
+        collectLeaves(high[f], visited, leaves);
+    }
+
+    private int allocate(int v, int l, int h){
+        if(size == var.length){
+            var = Arrays.copyOf(var, size * 2);
+            low = Arrays.copyOf(low, size * 2);
+            high = Arrays.copyOf(high, size * 2);
+            value = Arrays.copyOf(value, size * 2);
+        }
+        var[size] = v;
+        low[size] = l;
+        high[size] = h;
+        return size++;
+    }
+
+    private void rehash(){
+        fillUnique(unique.length * 2);
+    }
+
+    private void fillUnique(int length){
+        unique = new int[length];
+        int mask = unique.length - 1;
+        for(int n = 0; n < size; n++){
+            if(var[n] == TERMINAL)
+                continue;
+            int slot = hash(var[n], low[n], high[n]) & mask;
+            while(unique[slot] != 0)
+                slot = (slot + 1) & mask;
+            unique[slot] = n + 1;
+        }
+    }
+
+    private static int hash(int v, int l, int h){
+        int result = (v * 31 + l) * 0x9E3779B1 + h;
+        return result ^ (result >>> 16);
+    }
+
+    private static int cacheSlot(int op, int f, int g){
+        int result = ((op * 31 + f) * 0x9E3779B1 + g) * 0x85EBCA6B;
+        return (result ^ (result >>> 15)) & (CACHE_SIZE - 1);
+    }
+}
@@ -0,0 +1,297 @@
+package dadfarnia.ir.MDPF;
+import net.sf.javabdd.BDD;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Evaluates formulas with an ADD per state instead of a row of transitions. <br>
+ * The value of a state is exact for every product: state formulas are 0/1 per product ($, ~, &amp;, | treat nonzero
+ * values as true), next and until sum over the transitions of an action whose condition holds in the product and
+ * take the minimum over the actions enabled in the product. Products with equal values share a terminal, so a
+ * state never holds more regions than it has distinct values. Results are turned into ResultSets at the end,
+ * one w/p transition per distinct nonzero value p.
+ * @see ADD
+ */
+public class ADDModelChecker {
+    private ArrayList<State> states;
+    private SymbolTable stateTable;
+    private TransitionMatrix matrix;
+    private BDDService bddService;
+    private ADD add;
+    /**
+     * 0/1 ADD of each condition id, filled as conditions are met.
+     */
+    private int[] conditions;
+    /**
+     * Condition each ADD of conditions was made from, an id reclaimed and given again gets a new ADD.
+     */
+    private BDD[] converted;
+    /**
+     * False once an unbounded until stopped after maxIterations without converging, reset by MDPF per query.
+     * @see MDPF#isConverged()
+     */
+    boolean converged = true;
+
+    /**
+     * Values of the subformulas of the batch being evaluated, null outside of a batch.
+     */
+    private IdentityHashMap<Formula, int[]> shared;
+
+    /**
+     * @param states ArrayList of States of the model
+     * @param stateTable SymbolTable of state names
+     * @param matrix TransitionMatrix of the model
+     * @param bddService BDDService of the model
+     */
+    public ADDModelChecker(ArrayList<State> states, SymbolTable stateTable, TransitionMatrix matrix, BDDService bddService){
+        this.states = states;
+        this.stateTable = stateTable;
+        this.matrix = matrix;
+        this.bddService = bddService;
+        this.add = new ADD();
+        this.conditions = new int[0];
+        this.converted = new BDD[0];
+    }
+
+    /**
+     * @param formula Formula
+     * @param epsilon double, convergence threshold of unbounded until
+     * @param maxIterations int, iteration cap of unbounded until
+     * @param gaussSeidel boolean, in-place updates in until
+     * @return ResultSet, nonzero regions per state
+     */
+    public ResultSet sat(Formula formula, double epsilon, int maxIterations, boolean gaussSeidel){
+        int[] values = evaluate(formula, epsilon, maxIterations, gaussSeidel);
+        ResultSet result = new ResultSet(states, stateTable, bddService);
+        for(State state : states)
+            result.set(state, add.toTransitions(values[state.getIndex()], bddService));
+        return result;
+    }
+
+    /**
+     * Evaluate many formulas, every distinct subformula once.
+     * @param formulas List of Formulas, hash-consed
+     * @return ArrayList of ResultSets, in the order of formulas
+     * @see MDPF#sat(List)
+     */
+    public ArrayList<ResultSet> sat(List<Formula> formulas, double epsilon, int maxIterations, boolean gaussSeidel){
+        ArrayList<ResultSet> result = new ArrayList<ResultSet>();
+        shared = new IdentityHashMap<Formula, int[]>();
+        try {
+            for(Formula formula : formulas)
+                result.add(sat(formula, epsilon, maxIterations, gaussSeidel));
+        }finally{
+            shared = null;
+        }
+        return result;
+    }
+
+    /**
+     * @return ADD manager of the values
+     */
+    public ADD getADD(){
+        return add;
+    }
+
+    /**
+     * Drop the ADD nodes of the queries so far once the manager grew enough, only the ADDs of the conditions are
+     * kept. Called by MDPF when the outermost query ends, ids of the values of earlier queries are invalid then.
+     * @see ADD#collectIfGrown(int[]...)
+     */
+    void endQuery(){
+        add.collectIfGrown(conditions);
+    }
+
+    /**
+     * @return int[], ADD of formula for every state
+     */
+    public int[] evaluate(Formula formula, double epsilon, int maxIterations, boolean gaussSeidel){
+        if(shared == null)
+            return compute(formula, epsilon, maxIterations, gaussSeidel);
+        int[] result = shared.get(formula);
+        if(result == null){
+            result = compute(formula, epsilon, maxIterations, gaussSeidel);
+            shared.put(formula, result);
+        }
+        return result.clone();
+    }
+
+    private int[] compute(Formula formula, double epsilon, int maxIterations, boolean gaussSeidel){
+        switch(formula.getOperator()){
+            case Formula.PROPOSITION: {
+                int[] result = constant(add.getZero());
+                for(int s : statesContainingAction(formula.getName()))
+                    result[s] = add.getOne();
+                return result;
+            }
+            case Formula.NOT: {
+                int[] result = evaluate(formula.getLeft(), epsilon, maxIterations, gaussSeidel);
+                for(int s = 0; s < result.length; s++)
+                    result[s] = add.not(result[s]);
+                return result;
+            }
+            case Formula.AND:
+            case Formula.OR: {
+                int[] first = evaluate(formula.getLeft(), epsilon, maxIterations, gaussSeidel);
+                int[] second = evaluate(formula.getRight(), epsilon, maxIterations, gaussSeidel);
+                int op = formula.getOperator() == Formula.AND ? ADD.MIN : ADD.MAX;
+                for(int s = 0; s < first.length; s++)
+                    first[s] = add.apply(op, add.nonZero(first[s]), add.nonZero(second[s]));
+                return first;
+            }
+            case Formula.NEXT: {
+                int[] arg = evaluate(formula.getLeft(), epsilon, maxIterations, gaussSeidel);
+                int[] result = new int[arg.length];
+                int[] conditions = conditions();
+                for(int s = 0; s < result.length; s++)
+                    result[s] = matrix.multiplyRow(s, arg, add, conditions);
+                return result;
+            }
+            case Formula.UNTIL:
+            case Formula.EVENTUALLY: {
+                int[] arg1;
+                int[] arg2;
+                if(formula.getOperator() == Formula.EVENTUALLY){
+                    arg1 = constant(add.getOne());
+                    arg2 = evaluate(formula.getLeft(), epsilon, maxIterations, gaussSeidel);
+                }
+                else{
+                    arg1 = evaluate(formula.getLeft(), epsilon, maxIterations, gaussSeidel);
+                    arg2 = evaluate(formula.getRight(), epsilon, maxIterations, gaussSeidel);
+                }
+                return until(arg1, arg2, formula.getBound(), epsilon, maxIterations, gaussSeidel, null);
+            }
+            case Formula.PROBABILITY: {
+                Formula arg = formula.getLeft();
+                int[] result;
+                if(formula.isOneSided() && (arg.getOperator() == Formula.UNTIL || arg.getOperator() == Formula.EVENTUALLY)){
+                    int[] arg1;
+                    int[] arg2;
+                    if(arg.getOperator() == Formula.EVENTUALLY){
+                        arg1 = constant(add.getOne());
+                        arg2 = evaluate(arg.getLeft(), epsilon, maxIterations, gaussSeidel);
+                    }
+                    else{
+                        arg1 = evaluate(arg.getLeft(), epsilon, maxIterations, gaussSeidel);
+                        arg2 = evaluate(arg.getRight(), epsilon, maxIterations, gaussSeidel);
+                    }
+                    result = until(arg1, arg2, arg.getBound(), epsilon, maxIterations, gaussSeidel, formula);
+                }
+                else
+                    result = evaluate(arg, epsilon, maxIterations, gaussSeidel);
+                for(int s = 0; s < result.length; s++)
+                    result[s] = add.threshold(result[s], formula);
+                return result;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown operator " + formula.getOperator());
+        }
+    }
+
+    /**
+     * Sat(T1 U T2) per product: value is the value of T2 where T2 holds, the product of the row with the previous
+     * values where only T1 holds, and 0 elsewhere. With bound -1 iterates until no value changes more than epsilon,
+     * otherwise for bound steps; both stop once an iteration leaves every diagram unchanged. <br>
+     * Given a one-sided P~p[...] bound, an upper bound is iterated along, starting from 1 where only T1 holds:
+     * values only grow and upper bounds only shrink, so once both sides of every state agree on the bound the
+     * remaining iterations can not change the thresholded result, and iteration stops early.
+     * @param bound Formula, P~p[T1 U T2] node, or null
+     */
+    private int[] until(int[] arg1, int[] arg2, int steps, double epsilon, int maxIterations, boolean gaussSeidel, Formula bound){
+        int n = arg1.length;
+        int[] current = arg2.clone();
+        int[] go = new int[n];
+        ArrayList<Integer> active = new ArrayList<Integer>();
+        for(int s = 0; s < n; s++){
+            go[s] = add.apply(ADD.TIMES, add.nonZero(arg1[s]), add.not(arg2[s]));
+            if(go[s] != add.getZero())
+                active.add(s);
+        }
+        int[] upper = null;
+        if(bound != null){
+            upper = new int[n];
+            for(int s = 0; s < n; s++)
+                upper[s] = add.apply(ADD.PLUS, arg2[s], go[s]);
+        }
+        int[] conditions = conditions();
+        boolean unbounded = steps == -1;
+        if(unbounded)
+            steps = maxIterations;
+        boolean converged = active.size() == 0;
+        for(int i = 0; i < steps && !converged; i++){
+            int[] next = gaussSeidel && unbounded ? current : current.clone();
+            double change = 0;
+            boolean changed = false;
+            for(int s : active){
+                int product = matrix.multiplyRow(s, current, add, conditions);
+                int value = add.apply(ADD.PLUS, arg2[s], add.apply(ADD.TIMES, go[s], product));
+                if(value != current[s]){
+                    changed = true;
+                    if(unbounded)
+                        change = Math.max(change, add.maxValue(add.apply(ADD.DISTANCE, value, current[s])));
+                }
+                next[s] = value;
+            }
+            current = next;
+            converged = !changed || (unbounded && change <= epsilon);
+            if(upper != null && !converged){
+                int[] nextUpper = gaussSeidel && unbounded ? upper : upper.clone();
+                boolean decided = true;
+                for(int s : active){
+                    int product = matrix.multiplyRow(s, upper, add, conditions);
+                    nextUpper[s] = add.apply(ADD.PLUS, arg2[s], add.apply(ADD.TIMES, go[s], product));
+                    if(decided && add.threshold(current[s], bound) != add.threshold(nextUpper[s], bound))
+                        decided = false;
+                }
+                upper = nextUpper;
+                if(decided)
+                    return current;
+            }
+        }
+        if(unbounded && !converged)
+            this.converged = false;
+        return current;
+    }
+
+    private int[] constant(int value){
+        int[] result = new int[states.size()];
+        for(int s = 0; s < result.length; s++)
+            result[s] = value;
+        return result;
+    }
+
+    private int[] statesContainingAction(String label){
+        if(label.equals("True")){
+            int[] result = new int[states.size()];
+            for(int i = 0; i < result.length; i++)
+                result[i] = i;
+            return result;
+        }
+        int action = matrix.actions.indexOf(label);
+        if(action == -1)
+            return new int[0];
+        return matrix.statesWithAction(action);
+    }
+
+    /**
+     * @return int[], 0/1 ADD of every condition id
+     */
+    private int[] conditions(){
+        int count = bddService.conditionCount();
+        if(conditions.length < count){
+            conditions = Arrays.copyOf(conditions, count);
+            converted = Arrays.copyOf(converted, count);
+        }
+        for(int id = 0; id < count; id++){
+            BDD condition = bddService.getCondition(id);
+            if(condition != null && condition != converted[id]){
+                conditions[id] = add.fromBDD(condition, bddService);
+                converted[id] = condition;
+            }
+        }
+        return conditions;
+    }
+}
@@ -1,9 +1,18 @@
 package dadfarnia.ir.MDPF;
 import net.sf.javabdd.BDD;
 import net.sf.javabdd.BDDFactory;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.Stack;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Binary Decision Diagrams (BDDs) are used for efficient computation of many common problems. <br>
@@ -12,6 +21,19 @@ import java.util.Stack;
  * http://javabdd.sourceforge.net/apidocs/index.html
  */
 public class BDDService {
+    /**
+     * Initial number of nodes of the node table, the factory grows it when a garbage collection frees too few.
+     */
+    public static final int DEFAULT_NODE_TABLE_SIZE = 10000;
+    /**
+     * Initial number of entries of the operation cache.
+     */
+    public static final int DEFAULT_CACHE_SIZE = 1000;
+    /**
+     * Operators of the string format of bdds.
+     */
+    private static final String AND = " and ";
+    private static final String OR = " or ";
     /**
      * BDDFactory is an interface for the creation and manipulation of BDDs.
      */
@@ -24,145 +46,664 @@ public class BDDService {
      * Characters should not be used in variable and state names.
      */
     public static char[] specialChars = {'$', '&','|', '~', '@'};
+    /**
+     * Memo of weaker-than checks, keyed on the (min, max) pair of BDD nodes.
+     * BDDs hash and compare by node id, so the key is the node-id pair of the two conditions.
+     */
+    private ConcurrentHashMap<Pair<BDD, BDD>, Boolean> weakerMemo;
+    /**
+     * Memo of conjunctions, keyed on the (a, b) pair of BDD nodes.
+     */
+    private ConcurrentHashMap<Pair<BDD, BDD>, BDD> andMemo;
+    /**
+     * Memo of the number of products satisfying a bdd.
+     */
+    private ConcurrentHashMap<BDD, Double> satCountMemo;
+    /**
+     * Memo of the string form of bdds.
+     */
+    private ConcurrentHashMap<BDD, String> stringMemo;
+    /**
+     * Shared true BDD, so callers do not have to go to the factory for it.
+     */
+    private BDD one;
+    /**
+     * Interned application conditions, condition id -> bdd, null for a reclaimed id.
+     */
+    private ArrayList<BDD> conditions;
+    /**
+     * Interned application conditions, bdd -> condition id.
+     */
+    private HashMap<BDD, Integer> conditionIds;
+    /**
+     * Condition ids interned during queries, reclaimed by gc once no live result set refers to them.
+     * Conditions interned outside queries, i.e. the conditions of the model, are kept.
+     */
+    private BitSet queryIds;
+    /**
+     * Condition ids reclaimed by gc, reused by intern during queries.
+     */
+    private ArrayList<Integer> freeIds;
+    /**
+     * Result sets made on this service, to find the query condition ids still referenced.
+     */
+    private ArrayList<WeakReference<ResultSet>> results;
+    /**
+     * Dead references are dropped from results when it reaches this size.
+     */
+    private int pruneAt = 1024;
+    /**
+     * name -> bdd of propositions
+     */
+    private HashMap<String, BDD> propositionBDDs;
+    /**
+     * Parser of application conditions.
+     */
+    private FormulaParser parser;
+    /**
+     * Condition cache: condition id by condition text with white space removed.
+     */
+    private HashMap<String, Integer> conditionsByText;
+    /**
+     * Condition cache: bdd by parsed condition, parsed conditions are hash-consed so equal subtrees share an entry.
+     */
+    private HashMap<Formula, BDD> conditionsByFormula;
+    /**
+     * Feature model, the products outside it are not valid. Application conditions are conjoined with it,
+     * true when the model has no feature model.
+     */
+    private BDD featureModel;
+    /**
+     * Bdds made by and, or, not and node during the current query, null outside queries.
+     * @see #beginQuery()
+     */
+    private ArrayList<BDD> arena;
+    /**
+     * Keys put in andMemo and weakerMemo during the current query, the only entries that can refer to its bdds.
+     */
+    private ArrayList<Pair<BDD, BDD>> arenaAndKeys;
+    private ArrayList<Pair<BDD, BDD>> arenaWeakerKeys;
+    /**
+     * Number of nested beginQuery calls not ended yet.
+     */
+    private int queryDepth;
+    /**
+     * Number of bdds freed by endQuery and gc so far.
+     */
+    private long freedCount;
+    /**
+     * Memos are cleared at the end of a query once they hold more entries than this.
+     */
+    private int memoLimit = 100000;
 
     /**
      * Given an array of variable names, BDDFactory initialized
      * @param variables String[]
      */
     public BDDService(String[] variables ){
+        this(variables, DEFAULT_NODE_TABLE_SIZE, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Given an array of variable names, BDDFactory initialized with a node table and an operation cache of the given
+     * sizes.
+     * @param variables String[]
+     * @param nodeTableSize int, initial number of nodes
+     * @param cacheSize int, number of entries of the operation cache
+     */
+    public BDDService(String[] variables, int nodeTableSize, int cacheSize){
         int numberOfProp = variables.length;
-        bddFactory= BDDFactory.init(numberOfProp, 100);
+        bddFactory= BDDFactory.init(Math.max(nodeTableSize, numberOfProp), cacheSize);
         bddFactory.setVarNum(numberOfProp);
         BDD[] bdds  = new BDD[numberOfProp];
         for(int i=0; i<numberOfProp; i++)
             bdds[i] = bddFactory.ithVar(i);
         propositions = new ArrayList<Pair<String, BDD>>();
+        one = bddFactory.one();
+        weakerMemo = new ConcurrentHashMap<Pair<BDD, BDD>, Boolean>();
+        andMemo = new ConcurrentHashMap<Pair<BDD, BDD>, BDD>();
+        satCountMemo = new ConcurrentHashMap<BDD, Double>();
+        stringMemo = new ConcurrentHashMap<BDD, String>();
+        conditions = new ArrayList<BDD>();
+        conditionIds = new HashMap<BDD, Integer>();
+        queryIds = new BitSet();
+        freeIds = new ArrayList<Integer>();
+        results = new ArrayList<WeakReference<ResultSet>>();
+        propositionBDDs = new HashMap<String, BDD>();
+        parser = new FormulaParser();
+        conditionsByText = new HashMap<String, Integer>();
+        conditionsByFormula = new HashMap<Formula, BDD>();
+        featureModel = one;
 
         for (int i = 0; i < variables.length; i++) {
             if (!variables[i].equals(""))
                 if (!isValidName(variables[i]))
                     return; //TODO throw exception
             propositions.add(new Pair<String, BDD>(variables[i], bdds[i]));
+            propositionBDDs.put(variables[i], bdds[i]);
         }
     }
-    public static boolean isOperand(char symbol){
-        if(symbol=='&' || symbol == '|' || symbol == ')' || symbol =='(' || symbol == '~')
-            return false;
-        return true;
+    /**
+     * Convert an expression in infix form <i>e.g. (a & b) | ~c</i> to preorder <i>e.g. |&$a$b~$c</i>
+     * @param exp String
+     * @return String
+     */
+    public static String infixToPrefix(String exp){
+        return new FormulaParser().parseCondition(exp).toString();
+    }
 
+    /**
+     * Convert an string of expression in preorder <i> e.g &$b$a means (a and b)</i> to a bdd.
+     * The whole builder is consumed.
+     * @param exp StringBuilder
+     * @return BDD
+     */
+    public BDD expressionToBDD(StringBuilder exp){
+        Formula condition = parser.parse(exp.toString());
+        exp.setLength(0);
+        return toBDD(condition);
     }
-    public static String infixToPrefix(String exp){
-        exp = exp.replaceAll("\\s","");
-        Stack<Character> opStack = new Stack<Character>();
-        String prefix = "";
-        opStack.push('#');
-        exp  = new StringBuffer(exp).reverse().toString();
-        boolean isWord = false;
-        for(int i=0; i < exp.length(); i++){
-            char symbol = exp.charAt(i);
-            if(isOperand(symbol)){
-                isWord = true;
-                prefix += symbol;
+
+    /**
+     * Convert an application condition in infix form <i>e.g. U & (~B)</i> to a bdd.
+     * @param condition String
+     * @return BDD
+     */
+    public BDD conditionToBDD(String condition){
+        return getCondition(internCondition(condition));
+    }
+
+    /**
+     * Give an application condition in infix form its condition id, the condition is conjoined with the feature model. <br>
+     * Models repeat the same few conditions over many transitions, so conditions are cached by their text
+     * (white space removed) and by their parsed tree, and each distinct condition is built into a bdd once.
+     * @param condition String
+     * @return int, condition id
+     * @see #intern(BDD)
+     */
+    public int internCondition(String condition){
+        String key = removeWhiteSpace(condition);
+        Integer id = conditionsByText.get(key);
+        if(id == null){
+            id = intern(and(toBDD(parser.parseCondition(key)), featureModel));
+            conditionsByText.put(key, id);
+        }
+        return id;
+    }
+
+    /**
+     * Restrict the model to the products of a feature model. Constraints add up: the feature model becomes the
+     * conjunction of the previous one and featureModel. Conditions interned by internCondition from now on are
+     * conjoined with it, conditions already interned are not changed (see TransitionMatrix.restrict).
+     * @param featureModel BDD
+     */
+    public void setFeatureModel(BDD featureModel){
+        this.featureModel = and(this.featureModel, featureModel);
+        conditionsByText.clear();
+    }
+
+    /**
+     * @return BDD, the feature model, true if there is none
+     */
+    public BDD getFeatureModel(){
+        return featureModel;
+    }
+
+    /**
+     * @return boolean, true if a feature model is set
+     */
+    public boolean hasFeatureModel(){
+        return !featureModel.isOne();
+    }
+
+    /**
+     * Cube of one product: the conjunction of every proposition, negated where valuation is false.
+     * @param valuation boolean[], value of each proposition by index
+     * @return BDD
+     */
+    public BDD product(boolean[] valuation){
+        BDD result = one;
+        for(int i = valuation.length - 1; i >= 0; i--)
+            result = valuation[i] ? node(i, getZero(), result) : node(i, result, getZero());
+        return result;
+    }
+
+    /**
+     * Check a condition holds in a product, by restricting the condition to it.
+     * @param condition BDD
+     * @param product BDD, cube of the product, see product(boolean[])
+     * @return boolean
+     */
+    public boolean holds(BDD condition, BDD product){
+        synchronized (bddFactory){
+            BDD restricted = condition.restrict(product);
+            boolean result = restricted.isOne();
+            restricted.free();
+            return result;
+        }
+    }
+
+    /**
+     * Read a feature model in DIMACS CNF: "c" lines are comments, "p cnf variables clauses" is the header and
+     * every clause is a list of literals ended by 0. Variable i is the i-th proposition, -i its negation.
+     * @param reader BufferedReader
+     * @return BDD, conjunction of the clauses
+     * @throws IOException
+     * @throws IllegalArgumentException for a bad header, an unknown variable or a last clause not ended by 0
+     */
+    public BDD dimacsToBDD(BufferedReader reader) throws IOException{
+        BDD result = one;
+        BDD clause = bddFactory.zero();
+        boolean pending = false;
+        String line;
+        while((line = reader.readLine()) != null){
+            line = line.trim();
+            if(line.length() == 0 || line.startsWith("c") || line.startsWith("%"))
+                continue;
+            if(line.startsWith("p")){
+                String[] header = line.split("\\s+");
+                if(header.length < 4 || !header[1].equals("cnf"))
+                    throw new IllegalArgumentException("Bad DIMACS header " + line);
+                if(Integer.parseInt(header[2]) > propositions.size())
+                    throw new IllegalArgumentException("Feature model has more variables than propositions");
+                continue;
             }
-            else{
-                if(isWord)
-                    prefix += '$';
-                isWord = false;
-                if(symbol == ')')
-                    opStack.push(symbol);
-                else if (symbol == '('){
-                    while(opStack.peek() != ')'){
-                        prefix += opStack.pop();
-                    }
-                    opStack.pop();
-                }
-                else{
-                    opStack.push(symbol);
+            for(String token : line.split("\\s+")){
+                int index = Integer.parseInt(token);
+                if(index == 0){
+                    BDD conjunction = result.apply(clause, BDDFactory.and);
+                    if(result != one)
+                        result.free();
+                    clause.free();
+                    result = conjunction;
+                    clause = bddFactory.zero();
+                    pending = false;
+                    continue;
                 }
+                int var = Math.abs(index) - 1;
+                if(var >= propositions.size())
+                    throw new IllegalArgumentException("Unknown variable " + index + " in feature model");
+                BDD proposition = propositions.get(var).getElement1();
+                BDD literal = index > 0 ? proposition : proposition.not();
+                BDD disjunction = clause.apply(literal, BDDFactory.or);
+                if(literal != proposition)
+                    literal.free();
+                clause.free();
+                clause = disjunction;
+                pending = true;
             }
+        }
+        clause.free();
+        if(pending){
+            if(result != one)
+                result.free();
+            throw new IllegalArgumentException("Last clause of feature model not ended by 0");
+        }
+        return result;
+    }
 
+    private static String removeWhiteSpace(String in){
+        StringBuilder result = null;
+        for(int i=0; i<in.length(); i++){
+            char c = in.charAt(i);
+            if(Character.isWhitespace(c)){
+                if(result == null)
+                    result = new StringBuilder(in.substring(0, i));
+            }
+            else if(result != null)
+                result.append(c);
         }
-        if(isWord)
-            prefix += '$';
-        while(opStack.peek() != '#')
-            prefix += opStack.pop();
-        prefix = new StringBuffer(prefix).reverse().toString();
-        return prefix;
+        return result == null ? in : result.toString();
     }
 
     /**
-     * Convert an string of expression in preorder <i> e.g &$b$a means (a and b)</i> to a bdd
-     * @param exp StringBuilder
+     * Build the bdd of a parsed application condition, each subtree is built once.
+     * @param condition Formula over propositions with ~, & and |
      * @return BDD
      */
-    public BDD expressionToBDD(StringBuilder exp){
-        for(int i=0; i<exp.length(); i++){
-            char op = exp.charAt(0);
-            String tmp = exp.substring(1);
-            exp.delete(0, exp.length());
-            exp.append(tmp);
-            if(op == '$')
-                return propositions.get(Utils.findInArrayOfPairs(propositions,getName(exp))).getElement1();
-            else if(op == '&'){
-                BDD firstArg = expressionToBDD(exp);
-                BDD secondArg = expressionToBDD(exp);
-                return firstArg.apply(secondArg, BDDFactory.and);
-            }
-            else if(op == '~'){
-                return expressionToBDD(exp).not();
-            }
-            else if (op == '|'){
-                BDD firstArg = expressionToBDD(exp);
-                BDD secondArg = expressionToBDD(exp);
-                return firstArg.apply(secondArg, BDDFactory.or);
+    public BDD toBDD(Formula condition){
+        BDD result = conditionsByFormula.get(condition);
+        if(result == null){
+            result = buildBDD(condition);
+            conditionsByFormula.put(condition, result);
+        }
+        return result;
+    }
+
+    private BDD buildBDD(Formula condition){
+        switch(condition.getOperator()){
+            case Formula.PROPOSITION: {
+                BDD proposition = propositionBDDs.get(condition.getName());
+                if(proposition == null)
+                    throw new IllegalArgumentException("Unknown proposition " + condition.getName());
+                return proposition;
             }
+            case Formula.NOT:
+                return toBDD(condition.getLeft()).not();
+            case Formula.AND:
+                return toBDD(condition.getLeft()).apply(toBDD(condition.getRight()), BDDFactory.and);
+            case Formula.OR:
+                return toBDD(condition.getLeft()).apply(toBDD(condition.getRight()), BDDFactory.or);
+            default:
+                throw new IllegalArgumentException("'" + condition.getOperator() + "' is not allowed in an application condition");
         }
-        return null;
     }
 
     /**
-     * String format of a BDD
+     * String format of a BDD, <i>e.g. (A and B) or ((not A) and C)</i>, memoized per node: the string of every
+     * node below b is built once. A node under several parents is repeated in the string of each, so the
+     * string grows with the number of paths of b; reports of deep conditions use toSharedString. <br>
+     * The strings of the nodes below b are kept until the query ends, the string of b as long as b is not freed.
      * @param b BDD
      * @return String
+     * @see #writeShared(BDD, Appendable)
      */
     public String toString(BDD b){
+        String result = stringMemo.get(b);
+        if(result != null)
+            return result;
+        if(b.isOne())
+            return "T";
+        if(b.isZero())
+            return "F";
+        beginQuery();
+        try {
+            return term(b);
+        }finally{
+            endQuery();
+        }
+    }
+
+    private String term(BDD b){
+        String result = stringMemo.get(b);
+        if(result != null)
+            return result;
         if(b.isOne())
             return "T";
         if(b.isZero())
             return "F";
-        BDD low = b.low();
-        BDD high = b.high();
+        BDD low = child(b, false);
+        BDD high = child(b, true);
         String label = propositions.get(b.var()).getElement0();
 
         if(high.isOne() && low.isZero())
-            return  label;
-        else if (high.isZero() && low.isOne())
-            return "(not " + label + ")";
-
-        if (high.isOne())
-            return label + " or " + toString(low) ;
-        else if (low.isOne())
-            return "(not " + label + ") or " + toString(high)  ;
+            result = label;
+        else if(high.isZero() && low.isOne())
+            result = "(not " + label + ")";
+        else if(high.isOne())
+            result = label + OR + operand(low, OR);
+        else if(low.isOne())
+            result = "(not " + label + ")" + OR + operand(high, OR);
         else if(low.isZero())
-            return label + " and " +  toString(high) ;
+            result = label + AND + operand(high, AND);
         else if(high.isZero())
-            return  "(not " + label + ") and " + toString(low) ;
+            result = "(not " + label + ")" + AND + operand(low, AND);
         else
-            return "(" + label + " and " + toString(high) +") or (" + "(not " + label +") and "+ toString(low) + ")";
+            result = "(" + label + AND + operand(high, AND) + ") or ((not " + label + ")" + AND + operand(low, AND) + ")";
+        stringMemo.put(b, result);
+        return result;
     }
 
-    private static String getName(StringBuilder number){
-        int i;
-        for(i=1; i<number.length(); i++){
-            if(isSpecialChar(number.charAt(i)))
-                break;
+    /**
+     * Term of a child, in parentheses when its operator is not the one of its parent: and binds tighter than or,
+     * so a or b under an and is written (a or b).
+     */
+    private String operand(BDD b, String operator){
+        String op = operator(b);
+        String result = term(b);
+        return op == null || op.equals(operator) ? result : "(" + result + ")";
+    }
+
+    /**
+     * Operator at the top of the term of a node, OR or AND, null for constants and literals.
+     */
+    private String operator(BDD b){
+        if(b.isOne() || b.isZero() || isLiteral(b))
+            return null;
+        return child(b, false).isZero() || child(b, true).isZero() ? AND : OR;
+    }
+
+    /**
+     * Write the string format of a BDD, see toString.
+     * @param b BDD
+     * @param out Appendable
+     * @throws IOException from out
+     */
+    public void write(BDD b, Appendable out) throws IOException {
+        out.append(toString(b));
+    }
+
+    /**
+     * String of writeShared, the same as toString for a BDD without shared nodes.
+     * @param b BDD
+     * @return String
+     */
+    public String toSharedString(BDD b){
+        StringBuilder builder = new StringBuilder();
+        try {
+            writeShared(b, builder);
+        }catch(IOException e){
+            throw new RuntimeException(e);    // StringBuilder does not throw
         }
+        return builder.toString();
+    }
 
-        String name = number.substring(0,i);
-        String tmp = number.substring(i);
-        number.delete(0, number.length());
-        number.append(tmp);
-        return name;
+    /**
+     * Write a BDD as shared subterms: nodes under more than one parent are named #1, #2, ... and defined once,
+     * one "#i = term" line each before the term of b, so the output grows with the number of nodes,
+     * <i>e.g. #1 = B or C <br> (A and #1) or ((not A) and D and #1)</i>
+     * @param b BDD
+     * @param out Appendable
+     * @throws IOException from out
+     */
+    public void writeShared(BDD b, Appendable out) throws IOException {
+        beginQuery();
+        try {
+            HashMap<BDD, Integer> parents = new HashMap<BDD, Integer>();
+            countParents(b, parents);
+            HashMap<BDD, String> names = new HashMap<BDD, String>();
+            defineShared(b, parents, names, new HashSet<BDD>(), out);
+            writeTerm(b, parents, names, out);
+        }finally{
+            endQuery();
+        }
+    }
+
+    private void countParents(BDD b, HashMap<BDD, Integer> parents){
+        Integer count = parents.get(b);
+        parents.put(b, count == null ? 1 : count + 1);
+        if(count != null || b.isOne() || b.isZero())
+            return;
+        countParents(child(b, false), parents);
+        countParents(child(b, true), parents);
+    }
+
+    /**
+     * Define the shared nodes below b (and b itself), children first.
+     */
+    private void defineShared(BDD b, HashMap<BDD, Integer> parents, HashMap<BDD, String> names, HashSet<BDD> visited,
+                              Appendable out) throws IOException {
+        if(b.isOne() || b.isZero() || !visited.add(b))
+            return;
+        defineShared(child(b, false), parents, names, visited, out);
+        defineShared(child(b, true), parents, names, visited, out);
+        if(parents.get(b) > 1 && !isLiteral(b)){
+            String name = "#" + (names.size() + 1);
+            out.append(name).append(" = ");
+            writeTerm(b, parents, names, out);
+            out.append('\n');
+            names.put(b, name);
+        }
+    }
+
+    private void writeTerm(BDD b, HashMap<BDD, Integer> parents, HashMap<BDD, String> names, Appendable out) throws IOException {
+        if(b.isOne()){
+            out.append('T');
+            return;
+        }
+        if(b.isZero()){
+            out.append('F');
+            return;
+        }
+        BDD low = child(b, false);
+        BDD high = child(b, true);
+        String label = propositions.get(b.var()).getElement0();
+        if(isLiteral(b)){
+            out.append(high.isOne() ? label : "(not " + label + ")");
+            return;
+        }
+        if(high.isOne() || low.isOne()){
+            out.append(high.isOne() ? label : "(not " + label + ")").append(OR);
+            writeChild(high.isOne() ? low : high, OR, parents, names, out);
+        }
+        else if(low.isZero() || high.isZero()){
+            out.append(low.isZero() ? label : "(not " + label + ")").append(AND);
+            writeChild(low.isZero() ? high : low, AND, parents, names, out);
+        }
+        else{
+            out.append('(').append(label).append(AND);
+            writeChild(high, AND, parents, names, out);
+            out.append(") or ((not ").append(label).append(')').append(AND);
+            writeChild(low, AND, parents, names, out);
+            out.append(')');
+        }
+    }
+
+    /**
+     * Write a child by its name if it is shared, else by its term, in parentheses as in operand.
+     */
+    private void writeChild(BDD b, String operator, HashMap<BDD, Integer> parents, HashMap<BDD, String> names,
+                            Appendable out) throws IOException {
+        String name = names.get(b);
+        if(name != null){
+            out.append(name);
+            return;
+        }
+        String op = operator(b);
+        boolean parenthesized = op != null && !op.equals(operator);
+        if(parenthesized)
+            out.append('(');
+        writeTerm(b, parents, names, out);
+        if(parenthesized)
+            out.append(')');
+    }
+
+    private boolean isLiteral(BDD b){
+        BDD low = child(b, false);
+        BDD high = child(b, true);
+        return (low.isZero() && high.isOne()) || (low.isOne() && high.isZero());
+    }
+
+    /**
+     * Irredundant cover of a bdd by cubes (Minato-Morreale): no cube of the cover can be dropped or made larger.
+     * A cube holds 1 or 0 for the propositions it requires true or false and -1 for the others.
+     * @param b BDD
+     * @return ArrayList of cubes, one int per proposition, empty for false
+     */
+    public ArrayList<int[]> cover(BDD b){
+        ArrayList<int[]> result = new ArrayList<int[]>();
+        beginQuery();
+        try {
+            coverCubes(b, b, new HashMap<Pair<BDD, BDD>, Pair<BDD, ArrayList<int[]>>>(), result);
+        }finally{
+            endQuery();
+        }
+        return result;
+    }
+
+    /**
+     * Write the irredundant cover of a bdd, <i>e.g. (A and (not B)) or C</i>, T for true and F for false.
+     * @param b BDD
+     * @param out Appendable
+     * @throws IOException from out
+     * @see #cover(BDD)
+     */
+    public void writeCover(BDD b, Appendable out) throws IOException {
+        ArrayList<int[]> cubes = cover(b);
+        if(cubes.size() == 0){
+            out.append('F');
+            return;
+        }
+        for(int i = 0; i < cubes.size(); i++){
+            if(i > 0)
+                out.append(" or ");
+            int[] cube = cubes.get(i);
+            int literals = 0;
+            for(int value : cube){
+                if(value != -1)
+                    literals++;
+            }
+            if(literals == 0){
+                out.append('T');
+                continue;
+            }
+            boolean parenthesis = literals > 1 && cubes.size() > 1;
+            if(parenthesis)
+                out.append('(');
+            boolean first = true;
+            for(int v = 0; v < cube.length; v++){
+                if(cube[v] == -1)
+                    continue;
+                if(!first)
+                    out.append(" and ");
+                String label = propositions.get(v).getElement0();
+                out.append(cube[v] == 1 ? label : "(not " + label + ")");
+                first = false;
+            }
+            if(parenthesis)
+                out.append(')');
+        }
+    }
+
+    /**
+     * Minato-Morreale ISOP: a cover of some function between lower and upper, memoized per (lower, upper).
+     * @return BDD of the cover, its cubes are added to result
+     */
+    private BDD coverCubes(BDD lower, BDD upper, HashMap<Pair<BDD, BDD>, Pair<BDD, ArrayList<int[]>>> memo, ArrayList<int[]> result){
+        if(lower.isZero())
+            return lower;
+        if(upper.isOne()){
+            int[] cube = new int[propositions.size()];
+            Arrays.fill(cube, -1);
+            result.add(cube);
+            return upper;
+        }
+        Pair<BDD, BDD> key = new Pair<BDD, BDD>(lower, upper);
+        Pair<BDD, ArrayList<int[]>> known = memo.get(key);
+        if(known != null){
+            for(int[] cube : known.getElement1())
+                result.add(cube.clone());
+            return known.getElement0();
+        }
+        int v = Math.min(lower.var(), upper.var());    // lower is not constant: 1 <= upper would make upper 1
+        BDD lower0 = lower.var() != v ? lower : child(lower, false);
+        BDD lower1 = lower.var() != v ? lower : child(lower, true);
+        BDD upper0 = upper.var() != v ? upper : child(upper, false);
+        BDD upper1 = upper.var() != v ? upper : child(upper, true);
+
+        ArrayList<int[]> cubes0 = new ArrayList<int[]>();
+        BDD cover0 = coverCubes(and(lower0, not(upper1)), upper0, memo, cubes0);
+        ArrayList<int[]> cubes1 = new ArrayList<int[]>();
+        BDD cover1 = coverCubes(and(lower1, not(upper0)), upper1, memo, cubes1);
+        BDD rest = or(and(lower0, not(cover0)), and(lower1, not(cover1)));
+        ArrayList<int[]> cubesBoth = new ArrayList<int[]>();
+        BDD coverBoth = coverCubes(rest, and(upper0, upper1), memo, cubesBoth);
+
+        ArrayList<int[]> cubes = new ArrayList<int[]>();
+        for(int[] cube : cubes0){
+            cube[v] = 0;
+            cubes.add(cube);
+        }
+        for(int[] cube : cubes1){
+            cube[v] = 1;
+            cubes.add(cube);
+        }
+        cubes.addAll(cubesBoth);
+        BDD cover = or(node(v, cover0, cover1), coverBoth);
+        memo.put(key, new Pair<BDD, ArrayList<int[]>>(cover, cubes));
+        for(int[] cube : cubes)
+            result.add(cube.clone());
+        return cover;
     }
 
     /**
@@ -199,132 +740,472 @@ public class BDDService {
      * @return true BDD
      */
     public BDD getOne(){
-        return bddFactory.one();
+        return one;
     }
 
     /**
-     * Return Assignment that satisfies a bdd. <i>e.g. for a & b returns ((a,1) , (b,1))</i>
-     * if has more variables, all valid combinations are listed.
+     * Conjunction of two bdds. Safe to call from several threads: answers are memoized per (a, b) node pair and the
+     * factory, which is not thread-safe, is only entered under its lock on a memo miss.
+     * @param a BDD
      * @param b BDD
-     * @return ArrayList of Assignment
+     * @return BDD, a and b
      */
-    public ArrayList<Assignment> satDFS(BDD b){
-        ArrayList<Assignment> result = new ArrayList<Assignment>();
-        Assignment tmp = new Assignment(propositions);
-        recSatDFS(result, b, tmp);
+    public BDD and(BDD a, BDD b){
+        if(a.equals(one) || a.equals(b))
+            return b;
+        if(b.equals(one))
+            return a;
+        Pair<BDD, BDD> key = new Pair<BDD, BDD>(a, b);
+        BDD memo = andMemo.get(key);
+        if(memo != null)
+            return memo;
+        BDD result;
+        synchronized (bddFactory){
+            result = record(a.apply(b, BDDFactory.and));
+            if(arena != null)
+                arenaAndKeys.add(key);
+        }
+        andMemo.put(key, result);
         return result;
     }
 
-    private void recSatDFS(ArrayList<Assignment> allPaths, BDD b, Assignment path){
-        BDD high = b.high();
-        BDD low = b.low();
+    /**
+     * Disjunction of two bdds, not memoized.
+     * @param a BDD
+     * @param b BDD
+     * @return BDD, a or b
+     */
+    public BDD or(BDD a, BDD b){
+        if(a.isZero() || a.equals(b) || b.isOne())
+            return b;
+        if(b.isZero() || a.isOne())
+            return a;
+        synchronized (bddFactory){
+            return record(a.apply(b, BDDFactory.or));
+        }
+    }
 
-        Assignment lastPath = new Assignment(path);
-        if(high.isOne() && low.isOne())
-            return;
-        if(high.isOne()){
-            lastPath.add(new PairOfInts(b.var(), 1));
-            allPaths.add(lastPath);
+    /**
+     * @param a BDD
+     * @return BDD, not a
+     */
+    public BDD not(BDD a){
+        synchronized (bddFactory){
+            return record(a.not());
         }
-        else if(!high.isZero()) {
-            lastPath.add(new PairOfInts(b.var(), 1));
-            recSatDFS(allPaths, high, lastPath);
+    }
+
+    /**
+     * Give an application condition a compact integer id, equal bdds get the same id. An id given during a query
+     * stays until gc finds no reachable result set refers to it.
+     * @param condition BDD
+     * @return int, condition id
+     */
+    public int intern(BDD condition){
+        Integer id = conditionIds.get(condition);
+        if(id == null){
+            if(arena != null && freeIds.size() > 0){
+                id = freeIds.remove(freeIds.size() - 1);
+                conditions.set(id, condition);
+            }
+            else {
+                id = conditions.size();
+                conditions.add(condition);
+            }
+            conditionIds.put(condition, id);
+            if(arena != null)
+                queryIds.set(id);
         }
-        lastPath = new Assignment(path);
-        if(low.isOne()){
-            lastPath.add(new PairOfInts(b.var(), 0));
-            allPaths.add(lastPath);
+        else if(arena == null && queryIds.get(id))
+            queryIds.clear(id);    // the model uses it now
+        return id;
+    }
+
+    /**
+     * Give the next condition id no condition, as if it was reclaimed. Used to restore snapshots.
+     */
+    void skipId(){
+        freeIds.add(conditions.size());
+        conditions.add(null);
+    }
+
+    /**
+     * @param id int, condition id returned by intern
+     * @return BDD of the condition, null if the id was reclaimed by gc
+     */
+    public BDD getCondition(int id){
+        return conditions.get(id);
+    }
+
+    /**
+     * Keep the condition ids of result in use by gc while result is reachable.
+     * @param result ResultSet made on this service
+     */
+    void track(ResultSet result){
+        synchronized (bddFactory){
+            if(results.size() >= pruneAt){
+                for(Iterator<WeakReference<ResultSet>> i = results.iterator(); i.hasNext(); ){
+                    if(i.next().get() == null)
+                        i.remove();
+                }
+                pruneAt = Math.max(1024, 2 * results.size());
+            }
+            results.add(new WeakReference<ResultSet>(result));
         }
-        else if(!low.isZero()) {
-            lastPath.add(new PairOfInts(b.var(), 0));
-            recSatDFS(allPaths, low, lastPath);
+    }
+
+    /**
+     * @return number of interned application conditions, ids are 0 .. conditionCount()-1, including reclaimed ids
+     */
+    public int conditionCount(){
+        return conditions.size();
+    }
+
+    /**
+     * @return false BDD
+     */
+    public BDD getZero(){
+        return bddFactory.zero();
+    }
+
+    /**
+     * Build the bdd node "if variable then high else low".
+     * @param var int, index of proposition
+     * @param low BDD, else branch
+     * @param high BDD, then branch
+     * @return BDD
+     */
+    public BDD node(int var, BDD low, BDD high){
+        synchronized (bddFactory){
+            BDD variable = bddFactory.ithVar(var);
+            BDD result = variable.ite(high, low);
+            variable.free();
+            return record(result);
         }
     }
 
     /**
-     * Check if the min weaker than max. (Weaker definition is  in article II.A.): <br>
-     *      <b>"We say w is weaker than w` if the set of products satisfying w is a superset of the same set for w`."</b>
-     * @param min BDD
-     * @param max BDD
-     * @return boolean, true if min is weaker than max.
+     * Keep b in the arena of the current query, if any. Called under the factory lock.
      */
-    public boolean isWeaker(BDD min, BDD max){
-        ArrayList<Assignment> minResult = satDFS(min);
-        ArrayList<Assignment> maxResult = satDFS(max);
-        for(Assignment minAssignment : minResult){
-            boolean satisfied = false;
-            for(Assignment maxAssignment : maxResult){
-                if(minAssignment.isWeakerThan(maxAssignment)) {
-                    satisfied = true;
-                    break;
+    private BDD record(BDD b){
+        if(arena != null)
+            arena.add(b);
+        return b;
+    }
+
+    /**
+     * Low or high child of a node. JavaBDD gives every child a new reference, so walks over the nodes of a bdd run
+     * inside a query and their children are kept in its arena: endQuery frees them, the walk does not pin the nodes
+     * it visited. Children are only valid until the query ends.
+     * @param b BDD, not constant
+     * @param high boolean, true for the then branch
+     * @return BDD
+     */
+    BDD child(BDD b, boolean high){
+        synchronized (bddFactory){
+            return record(high ? b.high() : b.low());
+        }
+    }
+
+    /**
+     * Start a query: bdds made by and, or, not and node from now on are intermediates of the query, freed by the
+     * matching endQuery unless they are interned conditions. Queries nest, only the outermost one frees.
+     */
+    public void beginQuery(){
+        synchronized (bddFactory){
+            if(queryDepth++ == 0){
+                arena = new ArrayList<BDD>();
+                arenaAndKeys = new ArrayList<Pair<BDD, BDD>>();
+                arenaWeakerKeys = new ArrayList<Pair<BDD, BDD>>();
+            }
+        }
+    }
+
+    /**
+     * End a query started by beginQuery. At the end of the outermost query the intermediates of the query that are
+     * not interned conditions, the feature model or true are dropped from the memos and freed, so the factory can
+     * reclaim their nodes at its next garbage collection. No interned condition is freed, so the transitions of a
+     * result set stay valid, see gc. The cost is in the number of bdds and memo entries the query made, not in the
+     * size of the memos or of the live result sets. Memos holding more than the memo limit are cleared.
+     */
+    public void endQuery(){
+        synchronized (bddFactory){
+            if(--queryDepth > 0)
+                return;
+            IdentityHashMap<BDD, Boolean> garbage = new IdentityHashMap<BDD, Boolean>();
+            for(BDD b : arena){
+                if(b != one && b != featureModel && !isInterned(b))
+                    garbage.put(b, true);
+            }
+            if(garbage.size() > 0){
+                for(Pair<BDD, BDD> key : arenaAndKeys){
+                    BDD value = andMemo.get(key);
+                    if(refersTo(key, garbage) || (value != null && garbage.containsKey(value)))
+                        andMemo.remove(key);
+                }
+                for(Pair<BDD, BDD> key : arenaWeakerKeys){
+                    if(refersTo(key, garbage))
+                        weakerMemo.remove(key);
                 }
+                for(BDD b : garbage.keySet()){
+                    satCountMemo.remove(b);
+                    stringMemo.remove(b);
+                }
+                for(BDD b : garbage.keySet())
+                    b.free();
+                freedCount += garbage.size();
             }
-            if(!satisfied)
-                return false;
+            arena = null;
+            arenaAndKeys = null;
+            arenaWeakerKeys = null;
+            clearMemosOverLimit();
         }
-        return true;
     }
-}
 
-/**
- * Used for Assignment of variable names to values.
- */
-class Assignment {
-    HashMap<String, Integer> values;
-    ArrayList<Pair<String, BDD>> propositions;
+    /**
+     * Reclaim the condition ids interned by queries that no reachable result set refers to, their bdds are freed and
+     * later queries reuse the ids. Nothing is reclaimed automatically: a caller that dropped the result sets of
+     * earlier queries calls gc between queries. Transitions taken from ResultSet.get and bdds of getCondition are
+     * only valid after gc while the result set they came from is reachable. <br>
+     * The cost is in the size of the memos and of the live result sets.
+     * @return int, number of condition ids reclaimed
+     * @throws IllegalStateException during a query
+     */
+    public int gc(){
+        synchronized (bddFactory){
+            if(queryDepth > 0)
+                throw new IllegalStateException("gc during a query");
+            BitSet live = new BitSet();
+            for(Iterator<WeakReference<ResultSet>> i = results.iterator(); i.hasNext(); ){
+                ResultSet result = i.next().get();
+                if(result == null)
+                    i.remove();
+                else
+                    result.markConditions(live);
+            }
+            IdentityHashMap<BDD, Boolean> garbage = new IdentityHashMap<BDD, Boolean>();
+            int reclaimed = 0;
+            for(int id = queryIds.nextSetBit(0); id >= 0; id = queryIds.nextSetBit(id + 1)){
+                if(live.get(id))
+                    continue;
+                BDD condition = conditions.set(id, null);
+                conditionIds.remove(condition);
+                queryIds.clear(id);
+                freeIds.add(id);
+                reclaimed++;
+                garbage.put(condition, true);
+            }
+            garbage.remove(one);
+            garbage.remove(featureModel);
+            for(Pair<String, BDD> proposition : propositions)
+                garbage.remove(proposition.getElement1());
+            for(BDD condition : conditionsByFormula.values())
+                garbage.remove(condition);
+            if(garbage.size() > 0){
+                for(Iterator<Map.Entry<Pair<BDD, BDD>, BDD>> i = andMemo.entrySet().iterator(); i.hasNext(); ){
+                    Map.Entry<Pair<BDD, BDD>, BDD> entry = i.next();
+                    if(garbage.containsKey(entry.getValue()) || refersTo(entry.getKey(), garbage))
+                        i.remove();
+                }
+                for(Iterator<Pair<BDD, BDD>> i = weakerMemo.keySet().iterator(); i.hasNext(); ){
+                    if(refersTo(i.next(), garbage))
+                        i.remove();
+                }
+                removeKeys(satCountMemo, garbage);
+                removeKeys(stringMemo, garbage);
+                for(BDD b : garbage.keySet())
+                    b.free();
+                freedCount += garbage.size();
+            }
+            return reclaimed;
+        }
+    }
 
     /**
-     * Constructor
-     * @param propositions ArrayList of (name, bdd) pairs.
+     * @return number of condition ids interned by queries and not reclaimed by gc yet
      */
-    public Assignment(ArrayList<Pair <String, BDD>> propositions){
-        this.propositions = propositions;
-        this.values = new HashMap<String, Integer>();
-        for(Pair<String, BDD> unit : propositions){
-            values.put(unit.getElement0(), -1);
+    public int queryConditionCount(){
+        synchronized (bddFactory){
+            return queryIds.cardinality();
         }
     }
 
     /**
-     * Copy Constructor
-     * @param a Assignment
+     * Identity check: b itself is the bdd of an interned condition, not only equal to one.
      */
-    public Assignment(Assignment a){
-        this.propositions = a.propositions;
-        this.values = new HashMap<String, Integer>();
-        for(String name : a.values.keySet()){
-            this.values.put(name, a.values.get(name));
+    private boolean isInterned(BDD b){
+        Integer id = conditionIds.get(b);
+        return id != null && conditions.get(id) == b;
+    }
+
+    private void clearMemosOverLimit(){
+        if(andMemo.size() + weakerMemo.size() + satCountMemo.size() + stringMemo.size() > memoLimit){
+            andMemo.clear();
+            weakerMemo.clear();
+            satCountMemo.clear();
+            stringMemo.clear();
+        }
+    }
+
+    private static boolean refersTo(Pair<BDD, BDD> key, IdentityHashMap<BDD, Boolean> garbage){
+        return garbage.containsKey(key.getElement0()) || garbage.containsKey(key.getElement1());
+    }
+
+    private static void removeKeys(Map<BDD, ?> memo, IdentityHashMap<BDD, Boolean> garbage){
+        for(Iterator<BDD> i = memo.keySet().iterator(); i.hasNext(); ){
+            if(garbage.containsKey(i.next()))
+                i.remove();
         }
     }
 
     /**
-     * Given a BDD_id and its value, it will be add to assignments
-     * @param pair PairOfInts (bdd_var, value)
+     * Grow the node table and set the number of entries of the operation cache. The node table never shrinks.
+     * @param nodeTableSize int, number of nodes
+     * @param cacheSize int, number of entries of the operation cache
      */
-    public void add(PairOfInts pair){
-        for(Pair<String, BDD> proposition : propositions){
-            BDD element1 = proposition.getElement1();
-            if(element1.var() == pair.first)
-                values.put(proposition.getElement0(), pair.second);
+    public void setTableSizes(int nodeTableSize, int cacheSize){
+        synchronized (bddFactory){
+            if(nodeTableSize > bddFactory.getNodeTableSize())
+                bddFactory.setNodeTableSize(nodeTableSize);
+            bddFactory.setCacheSize(cacheSize);
         }
     }
 
     /**
-     * Check if this is weaker than the input
-     *      <b>"We say w is weaker than w` if the set of products satisfying w is a superset of the same set for w`."</b>
-     * @param big Assignment
-     * @return boolean, return true if this is weaker.
+     * @param memoLimit int, memos are cleared at the end of a query once they hold more entries than memoLimit
      */
-    public boolean isWeakerThan(Assignment big){
-        for(String key : values.keySet()){
-            if(big.values.get(key) == null)
-                return false;
+    public void setMemoLimit(int memoLimit){
+        this.memoLimit = memoLimit;
+    }
 
-            if(values.get(key) < big.values.get(key))
-                return false;
-            else if(!values.get(key).equals(big.values.get(key)) && ! big.values.get(key).equals(-1))
-                return false;
+    /**
+     * Statistics of the factory and of the memos, <i>e.g. nodes=1200/10000 cache=1000 gc=2 (3 ms) freed=350
+     * conditions=40/52 memo=87</i>: nodes in use out of the node table size, operation cache size, number and total
+     * time of the factory's garbage collections, bdds freed at the end of queries, interned conditions out of the
+     * condition ids and memo entries.
+     * @return String
+     */
+    public String getStatistics(){
+        synchronized (bddFactory){
+            BDDFactory.GCStats gc = bddFactory.getGCStats();
+            return "nodes=" + bddFactory.getNodeNum() + "/" + bddFactory.getNodeTableSize()
+                    + " cache=" + bddFactory.getCacheSize()
+                    + " gc=" + gc.num + " (" + gc.sumtime + " ms)"
+                    + " freed=" + freedCount
+                    + " conditions=" + (conditions.size() - freeIds.size()) + "/" + conditions.size()
+                    + " memo=" + (andMemo.size() + weakerMemo.size() + satCountMemo.size() + stringMemo.size());
         }
-        return true;
+    }
+
+    /**
+     * Enumerate the satisfying cubes of a bdd, one per path to the true terminal, so the cubes are disjoint and
+     * together cover b. The diagram is copied once into int arrays, enumeration itself allocates nothing: every cube
+     * is passed in the same byte[], indexed by proposition.
+     * @param b BDD
+     * @param visitor CubeVisitor, gets every cube until it returns false
+     * @return boolean, false if the visitor stopped the enumeration
+     */
+    public boolean forEachCube(BDD b, CubeVisitor visitor){
+        ArrayList<int[]> nodes = new ArrayList<int[]>();
+        int root;
+        beginQuery();
+        try {
+            root = collectNodes(b, new HashMap<BDD, Integer>(), nodes);
+        }finally{
+            endQuery();
+        }
+        int[] var = new int[nodes.size()];
+        int[] low = new int[nodes.size()];
+        int[] high = new int[nodes.size()];
+        for(int i = 0; i < var.length; i++){
+            var[i] = nodes.get(i)[0];
+            low[i] = nodes.get(i)[1];
+            high[i] = nodes.get(i)[2];
+        }
+        byte[] cube = new byte[propositions.size()];
+        Arrays.fill(cube, (byte) -1);
+        return visitCubes(root, var, low, high, cube, visitor);
+    }
+
+    /**
+     * @return int, node id: -1 for false, -2 for true, the index in nodes otherwise
+     */
+    private int collectNodes(BDD b, HashMap<BDD, Integer> ids, ArrayList<int[]> nodes){
+        if(b.isZero())
+            return -1;
+        if(b.isOne())
+            return -2;
+        Integer id = ids.get(b);
+        if(id != null)
+            return id;
+        int low = collectNodes(child(b, false), ids, nodes);
+        int high = collectNodes(child(b, true), ids, nodes);
+        nodes.add(new int[]{b.var(), low, high});
+        ids.put(b, nodes.size() - 1);
+        return nodes.size() - 1;
+    }
+
+    private static boolean visitCubes(int node, int[] var, int[] low, int[] high, byte[] cube, CubeVisitor visitor){
+        if(node == -1)
+            return true;
+        if(node == -2)
+            return visitor.visit(cube);
+        int v = var[node];
+        cube[v] = 1;
+        boolean go = visitCubes(high[node], var, low, high, cube, visitor);
+        if(go){
+            cube[v] = 0;
+            go = visitCubes(low[node], var, low, high, cube, visitor);
+        }
+        cube[v] = -1;
+        return go;
+    }
+
+    /**
+     * Number of products satisfying b, memoized per node. If min is weaker than max then satCount(min) <= satCount(max),
+     * so comparing counts rules out most weaker-than checks without building an implication.
+     * Safe to call from several threads, like and.
+     * @param b BDD
+     * @return double
+     */
+    public double satCount(BDD b){
+        Double memo = satCountMemo.get(b);
+        if(memo != null)
+            return memo;
+        double result;
+        synchronized (bddFactory){
+            result = b.satCount();
+        }
+        satCountMemo.put(b, result);
+        return result;
+    }
+
+    /**
+     * Check if the min weaker than max. (Weaker definition is  in article II.A.): <br>
+     *      <b>"We say w is weaker than w` if the set of products satisfying w is a superset of the same set for w`."</b> <br>
+     * Decided directly on the diagrams: min is weaker than max when every product satisfying min also satisfies max,
+     * i.e. the implication min => max is the constant true BDD. Answers are memoized per (min, max) node pair.
+     * Safe to call from several threads, like and.
+     * @param min BDD
+     * @param max BDD
+     * @return boolean, true if min is weaker than max.
+     */
+    public boolean isWeaker(BDD min, BDD max){
+        if(min.equals(max) || min.isZero() || max.isOne())
+            return true;
+        Pair<BDD, BDD> key = new Pair<BDD, BDD>(min, max);
+        Boolean memo = weakerMemo.get(key);
+        if(memo != null)
+            return memo;
+        boolean result;
+        synchronized (bddFactory){
+            BDD implication = min.apply(max, BDDFactory.imp);
+            result = implication.isOne();
+            implication.free();
+            if(arena != null)
+                arenaWeakerKeys.add(key);
+        }
+        weakerMemo.put(key, result);
+        return result;
     }
 }
@@ -0,0 +1,14 @@
+package dadfarnia.ir.MDPF;
+
+/**
+ * Receives the satisfying cubes of a bdd one at a time.
+ * @see BDDService#forEachCube(net.sf.javabdd.BDD, CubeVisitor)
+ */
+public interface CubeVisitor {
+    /**
+     * @param cube byte[], per proposition index 1 if it is true in the cube, 0 if false and -1 if either; the array
+     *             is reused for the next cube, copy it to keep it
+     * @return boolean, false to stop the enumeration
+     */
+    boolean visit(byte[] cube);
+}
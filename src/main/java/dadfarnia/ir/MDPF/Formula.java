@@ -0,0 +1,174 @@
+package dadfarnia.ir.MDPF;
+
+/**
+ * Immutable syntax tree of a PCTL formula or an application condition. <br>
+ * Nodes are hash-consed by the FormulaParser that built them: equal subformulas are the same object,
+ * so a formula can be compiled once and its nodes used as keys while it is evaluated many times.
+ * @see FormulaParser
+ */
+public class Formula {
+    /**
+     * Leaf: action label in PCTL formulas, proposition in application conditions.
+     */
+    public static final char PROPOSITION = '$';
+    public static final char NOT = '~';
+    public static final char AND = '&';
+    public static final char OR = '|';
+    public static final char NEXT = '@';
+    public static final char UNTIL = 'U';
+    public static final char EVENTUALLY = 'F';
+    /**
+     * Probability bound P~p[T], name holds the comparison ("<", "<=", ">", ">=" or "=") and threshold holds p.
+     */
+    public static final char PROBABILITY = 'P';
+
+    private final char operator;
+    private final String name;
+    /**
+     * Step bound of until and eventually, -1 when unbounded.
+     */
+    private final int bound;
+    /**
+     * Threshold of probability bounds, 0 for other operators.
+     */
+    private final double threshold;
+    private final Formula left;
+    private final Formula right;
+    private final int hash;
+
+    Formula(char operator, String name, int bound, Formula left, Formula right){
+        this(operator, name, bound, 0, left, right);
+    }
+
+    Formula(char operator, String name, int bound, double threshold, Formula left, Formula right){
+        this.operator = operator;
+        this.name = name;
+        this.bound = bound;
+        this.threshold = threshold;
+        this.left = left;
+        this.right = right;
+        int h = operator;
+        h = 31 * h + (name == null ? 0 : name.hashCode());
+        h = 31 * h + bound;
+        long bits = Double.doubleToLongBits(threshold);
+        h = 31 * h + (int) (bits ^ (bits >>> 32));
+        h = 31 * h + System.identityHashCode(left);
+        h = 31 * h + System.identityHashCode(right);
+        this.hash = h;
+    }
+
+    public char getOperator(){
+        return operator;
+    }
+
+    public String getName(){
+        return name;
+    }
+
+    public int getBound(){
+        return bound;
+    }
+
+    public double getThreshold(){
+        return threshold;
+    }
+
+    /**
+     * Check a probability against the bound of a P~p[T] node.
+     * @param probability double
+     * @return boolean, true if probability ~ threshold
+     */
+    public boolean accepts(double probability){
+        return compare(name, probability, threshold);
+    }
+
+    /**
+     * @return boolean, true if the bound of a P~p[T] node is an inequality: a probability known to lie in an
+     * interval whose ends are both accepted, or both rejected, is decided
+     */
+    public boolean isOneSided(){
+        return name.charAt(0) != '=';
+    }
+
+    /**
+     * @param comparison String, one of "<", "<=", ">", ">=", "=" and "=="
+     * @param value double
+     * @param threshold double
+     * @return boolean, true if value comparison threshold
+     * @throws IllegalArgumentException for an unknown comparison
+     */
+    public static boolean compare(String comparison, double value, double threshold){
+        if(comparison.equals("<"))
+            return value < threshold;
+        if(comparison.equals("<="))
+            return value <= threshold;
+        if(comparison.equals(">"))
+            return value > threshold;
+        if(comparison.equals(">="))
+            return value >= threshold;
+        if(comparison.equals("=") || comparison.equals("=="))
+            return value == threshold;
+        throw new IllegalArgumentException("Unknown comparison " + comparison);
+    }
+
+    public Formula getLeft(){
+        return left;
+    }
+
+    public Formula getRight(){
+        return right;
+    }
+
+    /**
+     * Structural equality of a node whose children are already hash-consed, children are compared by identity.
+     * @param o Object
+     * @return boolean
+     */
+    public boolean equals(Object o){
+        if(this == o)
+            return true;
+        if(!(o instanceof Formula))
+            return false;
+        Formula that = (Formula) o;
+        return operator == that.operator && bound == that.bound && left == that.left && right == that.right
+                && Double.doubleToLongBits(threshold) == Double.doubleToLongBits(that.threshold)
+                && (name == null ? that.name == null : name.equals(that.name));
+    }
+
+    public int hashCode(){
+        return hash;
+    }
+
+    /**
+     * Prefix form of the formula, <i>e.g. &$b$a means (a and b)</i>
+     * @return String
+     */
+    public String toString(){
+        StringBuilder result = new StringBuilder();
+        appendPrefix(result);
+        return result.toString();
+    }
+
+    private void appendPrefix(StringBuilder result){
+        if(operator == PROPOSITION){
+            result.append(PROPOSITION).append(name);
+            return;
+        }
+        if(operator == PROBABILITY){
+            result.append(PROBABILITY).append(name).append(threshold).append('[');
+            left.appendPrefix(result);
+            result.append(']');
+            return;
+        }
+        if((operator == UNTIL || operator == EVENTUALLY) && result.length() > 0 && !BDDService.isSpecialChar(result.charAt(result.length() - 1))
+                && result.charAt(result.length() - 1) != '[')
+            result.append(' ');
+        result.append(operator);
+        if(bound >= 0)
+            result.append(bound);
+        if(left != null)
+            left.appendPrefix(result);
+        if(right != null)
+            right.appendPrefix(result);
+    }
+}
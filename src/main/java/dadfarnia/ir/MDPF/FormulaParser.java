@@ -0,0 +1,265 @@
+package dadfarnia.ir.MDPF;
+import java.util.HashMap;
+
+/**
+ * Single pass parser of PCTL formulas and application conditions into hash-consed Formula trees. <br>
+ * <b>PCTL formulas</b> are in prefix form: <br>
+ *      $name, ~T, &T1T2, |T1T2, @T (next), U[k]T1T2 (until), F[k]T (eventually), P~p[T] (probability bound), <br>
+ *      where the optional k is a step bound, ~ is one of &lt;, &lt;=, &gt;, &gt;= and = and p is a probability,
+ *      <i>e.g. P&gt;=0.8[U3$True$send]</i>. A name runs until the next special character or white space,
+ *      white space between tokens is ignored. <br>
+ * <b>Application conditions</b> are in infix form with ~, &, | (in decreasing precedence) and parentheses,
+ *      <i>e.g. U & (~B)</i>.
+ * The input is read through an index, nothing is copied while parsing.
+ */
+public class FormulaParser {
+    /**
+     * Hash-consing table, every node built by this parser is interned here.
+     */
+    private HashMap<Formula, Formula> nodes;
+
+    private String input;
+    private int position;
+
+    public FormulaParser(){
+        nodes = new HashMap<Formula, Formula>();
+    }
+
+    /**
+     * Parse a PCTL formula in prefix form.
+     * @param formula String
+     * @return Formula
+     */
+    public Formula parse(String formula){
+        input = formula;
+        position = 0;
+        Formula result = parsePrefix();
+        expectEnd();
+        return result;
+    }
+
+    /**
+     * Parse an application condition in infix form.
+     * @param condition String
+     * @return Formula
+     */
+    public Formula parseCondition(String condition){
+        input = condition;
+        position = 0;
+        Formula result = parseOr();
+        expectEnd();
+        return result;
+    }
+
+    public Formula proposition(String name){
+        return intern(new Formula(Formula.PROPOSITION, name, -1, null, null));
+    }
+
+    public Formula not(Formula arg){
+        return intern(new Formula(Formula.NOT, null, -1, arg, null));
+    }
+
+    public Formula and(Formula arg1, Formula arg2){
+        return intern(new Formula(Formula.AND, null, -1, arg1, arg2));
+    }
+
+    public Formula or(Formula arg1, Formula arg2){
+        return intern(new Formula(Formula.OR, null, -1, arg1, arg2));
+    }
+
+    public Formula next(Formula arg){
+        return intern(new Formula(Formula.NEXT, null, -1, arg, null));
+    }
+
+    /**
+     * @param arg1 Formula
+     * @param arg2 Formula
+     * @param bound int, -1 for unbounded
+     * @return Formula of arg1 U arg2
+     */
+    public Formula until(Formula arg1, Formula arg2, int bound){
+        return intern(new Formula(Formula.UNTIL, null, bound, arg1, arg2));
+    }
+
+    /**
+     * @param arg Formula
+     * @param bound int, -1 for unbounded
+     * @return Formula of F arg
+     */
+    public Formula eventually(Formula arg, int bound){
+        return intern(new Formula(Formula.EVENTUALLY, null, bound, arg, null));
+    }
+
+    /**
+     * @param comparison String, one of "<", "<=", ">", ">=" and "="
+     * @param threshold double
+     * @param arg Formula
+     * @return Formula of P comparison threshold [arg]
+     */
+    public Formula probability(String comparison, double threshold, Formula arg){
+        return intern(new Formula(Formula.PROBABILITY, comparison, -1, threshold, arg, null));
+    }
+
+    private Formula intern(Formula node){
+        Formula existing = nodes.get(node);
+        if(existing != null)
+            return existing;
+        nodes.put(node, node);
+        return node;
+    }
+
+    private Formula parsePrefix(){
+        char op = next();
+        switch(op){
+            case Formula.PROPOSITION:
+                return proposition(readName());
+            case Formula.NOT:
+                return not(parsePrefix());
+            case Formula.AND: {
+                Formula arg1 = parsePrefix();
+                return and(arg1, parsePrefix());
+            }
+            case Formula.OR: {
+                Formula arg1 = parsePrefix();
+                return or(arg1, parsePrefix());
+            }
+            case Formula.NEXT:
+                return next(parsePrefix());
+            case Formula.UNTIL: {
+                int bound = readBound();
+                Formula arg1 = parsePrefix();
+                return until(arg1, parsePrefix(), bound);
+            }
+            case Formula.EVENTUALLY: {
+                int bound = readBound();
+                return eventually(parsePrefix(), bound);
+            }
+            case Formula.PROBABILITY: {
+                String comparison = readComparison();
+                double threshold = readThreshold();
+                if(next() != '[')
+                    throw error("Expected '['", position - 1);
+                Formula arg = parsePrefix();
+                if(next() != ']')
+                    throw error("Expected ']'", position - 1);
+                return probability(comparison, threshold, arg);
+            }
+            default:
+                throw error("Unexpected '" + op + "'", position - 1);
+        }
+    }
+
+    private Formula parseOr(){
+        Formula result = parseAnd();
+        while(peek() == Formula.OR){
+            position++;
+            result = or(result, parseAnd());
+        }
+        return result;
+    }
+
+    private Formula parseAnd(){
+        Formula result = parseUnary();
+        while(peek() == Formula.AND){
+            position++;
+            result = and(result, parseUnary());
+        }
+        return result;
+    }
+
+    private Formula parseUnary(){
+        char c = peek();
+        if(c == Formula.NOT){
+            position++;
+            return not(parseUnary());
+        }
+        if(c == '('){
+            position++;
+            Formula result = parseOr();
+            if(next() != ')')
+                throw error("Expected ')'", position - 1);
+            return result;
+        }
+        return proposition(readName());
+    }
+
+    private char peek(){
+        while(position < input.length() && Character.isWhitespace(input.charAt(position)))
+            position++;
+        if(position == input.length())
+            return 0;
+        return input.charAt(position);
+    }
+
+    private char next(){
+        char c = peek();
+        if(c == 0)
+            throw error("Unexpected end of input", position);
+        position++;
+        return c;
+    }
+
+    private String readName(){
+        peek();
+        int start = position;
+        while(position < input.length() && !isNameEnd(input.charAt(position)))
+            position++;
+        if(start == position)
+            throw error("Expected a name", start);
+        return input.substring(start, position);
+    }
+
+    private int readBound(){
+        int start = position;
+        int bound = 0;
+        while(position < input.length() && input.charAt(position) >= '0' && input.charAt(position) <= '9'){
+            bound = bound * 10 + input.charAt(position) - '0';
+            position++;
+        }
+        if(start == position)
+            return -1;
+        return bound;
+    }
+
+    private String readComparison(){
+        char c = next();
+        if(c == '=')
+            return "=";
+        if(c != '<' && c != '>')
+            throw error("Expected a comparison", position - 1);
+        if(position < input.length() && input.charAt(position) == '='){
+            position++;
+            return c + "=";
+        }
+        return String.valueOf(c);
+    }
+
+    private double readThreshold(){
+        peek();
+        int start = position;
+        while(position < input.length() && (Character.isDigit(input.charAt(position)) || input.charAt(position) == '.'))
+            position++;
+        double result;
+        try {
+            result = Double.parseDouble(input.substring(start, position));
+        }catch(NumberFormatException e){
+            throw error("Expected a probability", start);
+        }
+        if(result < 0 || result > 1)
+            throw error("Probability should be between 0 and 1", start);
+        return result;
+    }
+
+    private void expectEnd(){
+        if(peek() != 0)
+            throw error("Unexpected '" + input.charAt(position) + "'", position);
+    }
+
+    private static boolean isNameEnd(char c){
+        return BDDService.isSpecialChar(c) || Character.isWhitespace(c) || c == '(' || c == ')' || c == '[' || c == ']';
+    }
+
+    private IllegalArgumentException error(String message, int at){
+        return new IllegalArgumentException(message + " at position " + at + " of \"" + input + "\"");
+    }
+}
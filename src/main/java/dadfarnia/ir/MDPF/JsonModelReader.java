@@ -0,0 +1,175 @@
+package dadfarnia.ir.MDPF;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Pull reader of the json model format (see MDPF). <br>
+ * The file is tokenized by json-simple in streaming mode, the parser is paused after every transition object
+ * and resumed by the next call to next(), so only the current transition is held in memory, however big the file is.
+ * "Propositions" and "States" are available as soon as they are read, the documented format puts them before
+ * "Transitions".
+ */
+public class JsonModelReader implements ContentHandler {
+    private Reader reader;
+    private JSONParser parser;
+    private boolean started;
+    private boolean finished;
+    private boolean ready;
+
+    private int depth;
+    private String key;
+    private boolean inTransitions;
+
+    private String propositions;
+    private String states;
+    private String featureModel;
+
+    private String source;
+    private String destination;
+    private String label;
+    private double probability;
+    private String applicationCondition;
+
+    /**
+     * Constructor
+     * @param reader Reader of the json model
+     */
+    public JsonModelReader(Reader reader){
+        this.reader = reader;
+        this.parser = new JSONParser();
+    }
+
+    /**
+     * Read up to the end of the next transition.
+     * @return boolean, false if there are no more transitions
+     * @throws IOException
+     * @throws ParseException
+     */
+    public boolean next() throws IOException, ParseException {
+        if(finished)
+            return false;
+        ready = false;
+        parser.parse(reader, this, started);
+        started = true;
+        if(!ready)
+            finished = true;
+        return ready;
+    }
+
+    /**
+     * @return String, value of "Propositions", null if not read yet
+     */
+    public String getPropositions(){
+        return propositions;
+    }
+
+    /**
+     * @return String, value of "States", null if not read yet
+     */
+    public String getStates(){
+        return states;
+    }
+
+    /**
+     * @return String, value of the optional "FeatureModel", null if not read (yet)
+     */
+    public String getFeatureModel(){
+        return featureModel;
+    }
+
+    public String getSource(){
+        return source;
+    }
+
+    public String getDestination(){
+        return destination;
+    }
+
+    public String getLabel(){
+        return label;
+    }
+
+    public double getProbability(){
+        return probability;
+    }
+
+    public String getApplicationCondition(){
+        return applicationCondition;
+    }
+
+    public void startJSON(){
+    }
+
+    public void endJSON(){
+    }
+
+    public boolean startObject(){
+        depth++;
+        if(inTransitions && depth == 2){
+            source = null;
+            destination = null;
+            label = null;
+            probability = 0;
+            applicationCondition = null;
+        }
+        return true;
+    }
+
+    public boolean endObject(){
+        depth--;
+        if(inTransitions && depth == 1){
+            ready = true;
+            return false;
+        }
+        return true;
+    }
+
+    public boolean startObjectEntry(String key){
+        this.key = key;
+        return true;
+    }
+
+    public boolean endObjectEntry(){
+        return true;
+    }
+
+    public boolean startArray(){
+        if(depth == 1 && "Transitions".equals(key))
+            inTransitions = true;
+        return true;
+    }
+
+    public boolean endArray(){
+        if(depth == 1)
+            inTransitions = false;
+        return true;
+    }
+
+    public boolean primitive(Object value) throws ParseException {
+        if(depth == 1){
+            if("Propositions".equals(key))
+                propositions = (String) value;
+            else if("States".equals(key))
+                states = (String) value;
+            else if("FeatureModel".equals(key))
+                featureModel = (String) value;
+        }
+        else if(inTransitions && depth == 2){
+            if("Source".equals(key))
+                source = (String) value;
+            else if("Destination".equals(key))
+                destination = (String) value;
+            else if("Label".equals(key))
+                label = (String) value;
+            else if("Probability".equals(key))
+                probability = ((Number) value).doubleValue();
+            else if("ApplicationCondition".equals(key))
+                applicationCondition = (String) value;
+        }
+        return true;
+    }
+}
@@ -1,18 +1,21 @@
 package dadfarnia.ir.MDPF;
 import net.sf.javabdd.BDD;
 
+import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Iterator;
-import java.util.Scanner;
-import java.io.File;
-
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
 import org.json.simple.parser.ParseException;
 
 
@@ -32,6 +35,93 @@ public class MDPF {
      */
     private BDDService bddService;
 
+    /**
+     * state name <-> state index
+     */
+    private SymbolTable stateTable;
+
+    /**
+     * Transitions of all states, in compressed sparse row form.
+     * @see TransitionMatrix
+     */
+    private TransitionMatrix matrix;
+
+    /**
+     * Parser of PCTL formulas, and the formulas it already compiled.
+     */
+    private FormulaParser parser = new FormulaParser();
+    private HashMap<String, Formula> compiled = new HashMap<String, Formula>();
+    /**
+     * Compiled formulas are dropped, with the parser, once more than this many are cached.
+     */
+    private int compiledLimit = 10000;
+
+    /**
+     * Unbounded until stops when no probability changed more than epsilon in an iteration.
+     */
+    private double epsilon = 1e-6;
+
+    /**
+     * Unbounded until gives up after this many iterations.
+     */
+    private int maxIterations = 10000;
+
+    /**
+     * Unbounded until updates rows in place (Gauss-Seidel) instead of from the previous iteration (Jacobi).
+     */
+    private boolean gaussSeidel = true;
+
+    /**
+     * Number of threads multiplying rows, rows are multiplied on the calling thread when it is 1.
+     */
+    private int parallelism = 1;
+    private ExecutorService executor;
+
+    /**
+     * Projections of the model to products, by valuation of the propositions ('1' or '0' per proposition).
+     * @see ProductMDP
+     */
+    private HashMap<String, ProductMDP> projections = new HashMap<String, ProductMDP>();
+    private int projectionsVersion;
+
+    /**
+     * Evaluator with an ADD per state, used instead of rows of transitions when set.
+     * @see ADDModelChecker
+     */
+    private ADDModelChecker addModelChecker;
+
+    /**
+     * Evaluator with one ADD over the encoded state space, used instead of rows of transitions when set.
+     * @see SymbolicModelChecker
+     */
+    private SymbolicModelChecker symbolicModelChecker;
+
+    /**
+     * Results of the subformulas of the batch being evaluated, and the number of times each is still going to be
+     * read, null outside of a batch.
+     * @see #sat(List)
+     */
+    private IdentityHashMap<Formula, ResultSet> shared;
+    private IdentityHashMap<Formula, Integer> uses;
+
+    /**
+     * Results of every formula evaluated so far, with the edit count of the model they are up to date with,
+     * null unless incremental is set.
+     * @see #setIncremental(boolean)
+     */
+    private IdentityHashMap<Formula, ResultSet> cache;
+    private IdentityHashMap<Formula, Integer> cacheVersion;
+
+    /**
+     * False when an unbounded until of the last query stopped after maxIterations without converging.
+     * @see #isConverged()
+     */
+    private boolean converged = true;
+    /**
+     * Number of nested sat calls running, the outermost one resets converged.
+     */
+    private int depth;
+
     /**
      * Constructor that creates an MDPF from a file,
      * <b> Text file format: </b> <br>
@@ -43,6 +133,7 @@ public class MDPF {
      *  {
      *      "Propositions" : <propistions seperated by space>,
      *      "States" : <state names seperated by space>,
+     *      "FeatureModel" : <optional condition over the propositions, see setFeatureModel>,
      *      "Transitions" : [
      *          {
      *              "source": <source>,
@@ -53,10 +144,14 @@ public class MDPF {
      *          },
      *          ...
      *      ]
+     * <b> snapshot file format </b>: files ending in .mdpf are binary snapshots written by save
+     * @see ModelSnapshot
      * @param fileName
      */
     public MDPF(String fileName){
-        if(fileName.endsWith("json"))
+        if(fileName.endsWith(".mdpf"))
+            readSnapshot(fileName);
+        else if(fileName.endsWith("json"))
             readJsonFile(fileName);
         else
             readFile(fileName);
@@ -70,6 +165,279 @@ public class MDPF {
        return states;
     }
 
+    /**
+     * @return number of transitions of the model
+     */
+    public int size(){
+        return matrix.size();
+    }
+
+    /**
+     * @return BDDService holding the propositions and application conditions of the model
+     */
+    public BDDService getBDDService(){
+        return bddService;
+    }
+
+    /**
+     * @return boolean, false if an unbounded until of the last sat call stopped after maxIterations without
+     * converging, its values are then those of the last iteration
+     * @see #setMaxIterations(int)
+     */
+    public boolean isConverged(){
+        return converged;
+    }
+
+    /**
+     * @param epsilon double, convergence threshold of unbounded until
+     */
+    public void setEpsilon(double epsilon){
+        this.epsilon = epsilon;
+    }
+
+    /**
+     * @param compiledLimit int, the compiled formulas and the results cached for them are dropped once more than
+     *                      compiledLimit formulas are compiled, so a long running process seeing ever new formulas
+     *                      does not keep them all
+     */
+    public void setCompiledLimit(int compiledLimit){
+        this.compiledLimit = compiledLimit;
+    }
+
+    /**
+     * @param maxIterations int, iteration cap of unbounded until
+     */
+    public void setMaxIterations(int maxIterations){
+        this.maxIterations = maxIterations;
+    }
+
+    /**
+     * @param gaussSeidel boolean, true for in-place (Gauss-Seidel) updates in unbounded until, false for Jacobi
+     */
+    public void setGaussSeidel(boolean gaussSeidel){
+        this.gaussSeidel = gaussSeidel;
+    }
+
+    /**
+     * Multiply rows on several threads in next and until. Unbounded until does Jacobi sweeps when parallelism is
+     * above 1, whatever setGaussSeidel says, since rows of one sweep are computed at the same time.
+     * @param parallelism int, number of threads, 1 for sequential evaluation
+     */
+    public void setParallelism(int parallelism){
+        if(executor != null)
+            executor.shutdown();
+        executor = null;
+        this.parallelism = Math.max(1, parallelism);
+        if(this.parallelism > 1){
+            executor = Executors.newFixedThreadPool(this.parallelism, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "MDPF-multiply");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    /**
+     * Evaluate formulas with an algebraic decision diagram per state instead of a row of transitions.
+     * Values are then exact per product and rows hold one entry per distinct probability. Evaluation is sequential.
+     * @param decisionDiagrams boolean
+     * @see ADDModelChecker
+     */
+    public void setDecisionDiagrams(boolean decisionDiagrams){
+        if(!decisionDiagrams)
+            addModelChecker = null;
+        else if(addModelChecker == null){
+            addModelChecker = new ADDModelChecker(states, stateTable, matrix, bddService);
+            symbolicModelChecker = null;
+        }
+    }
+
+    /**
+     * Evaluate formulas symbolically: states and actions are encoded with extra decision diagram variables, and next
+     * and until work on the whole state space at once. Values are those of setDecisionDiagrams, until does Jacobi
+     * iterations.
+     * @param symbolic boolean
+     * @see SymbolicModelChecker
+     */
+    public void setSymbolic(boolean symbolic){
+        if(!symbolic)
+            symbolicModelChecker = null;
+        else if(symbolicModelChecker == null){
+            symbolicModelChecker = new SymbolicModelChecker(states, stateTable, matrix, bddService);
+            addModelChecker = null;
+        }
+    }
+
+    /**
+     * Keep the result of every formula and subformula evaluated, and bring them up to date after edits instead of
+     * evaluating again: only the rows of edited states, and of states whose rows read changed rows (through the
+     * predecessor index), are computed again. Applies to evaluation with rows of transitions.
+     * @param incremental boolean
+     * @see #addTransition(String, String, String, double, String)
+     * @see #removeTransition(String, String, String)
+     * @see #setProbability(String, String, String, double)
+     */
+    public void setIncremental(boolean incremental){
+        if(!incremental){
+            cache = null;
+            cacheVersion = null;
+        }
+        else if(cache == null){
+            matrix.trackEdits();
+            cache = new IdentityHashMap<Formula, ResultSet>();
+            cacheVersion = new IdentityHashMap<Formula, Integer>();
+        }
+    }
+
+    /**
+     * Add a transition to the model.
+     * @param source String, name of source state
+     * @param destination String, name of destination state
+     * @param action String, action label
+     * @param probability double
+     * @param condition String, application condition in infix form
+     */
+    public void addTransition(String source, String destination, String action, double probability, String condition){
+        addTransition(source, destination, action, probability, bddService.internCondition(condition));
+    }
+
+    /**
+     * Remove the transitions of an action from source to destination.
+     * @param source String, name of source state
+     * @param destination String, name of destination state, null for every destination
+     * @param action String, action label
+     * @return int, number of removed transitions
+     */
+    public int removeTransition(String source, String destination, String action){
+        int sourceIndex = stateTable.indexOf(source);
+        if(sourceIndex == -1){
+            System.out.println("State " + source + " not declared");
+            return 0;
+        }
+        return states.get(sourceIndex).removeTransition(action, destination);
+    }
+
+    /**
+     * Change the probability of the transitions of an action from source to destination.
+     * @param source String, name of source state
+     * @param destination String, name of destination state, null for every destination
+     * @param action String, action label
+     * @param probability double
+     * @return int, number of changed transitions
+     */
+    public int setProbability(String source, String destination, String action, double probability){
+        int sourceIndex = stateTable.indexOf(source);
+        if(sourceIndex == -1){
+            System.out.println("State " + source + " not declared");
+            return 0;
+        }
+        return states.get(sourceIndex).setProbability(action, destination, probability);
+    }
+
+    /**
+     * Restrict the model to the valid products of a feature model: every application condition is conjoined with it
+     * and transitions that no valid product can take are removed. Products of conditions that become false while
+     * evaluating are dropped too. Constraints add up if called more than once.
+     * @param featureModel String, condition over the propositions in infix form <i>e.g. M &amp; ~(A &amp; B)</i>
+     */
+    public void setFeatureModel(String featureModel){
+        restrict(bddService.toBDD(parser.parseCondition(featureModel)));
+    }
+
+    /**
+     * Restrict the model to the valid products of a feature model in DIMACS CNF, see setFeatureModel.
+     * Variable i of the file is the i-th proposition.
+     * @param fileName String
+     */
+    public void readFeatureModel(String fileName){
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(fileName));
+            try {
+                restrict(bddService.dimacsToBDD(reader));
+            } finally {
+                reader.close();
+            }
+        }catch(FileNotFoundException e){
+            System.out.println("File " + fileName + " Not Found");
+        }catch(IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    private void restrict(BDD featureModel){
+        bddService.setFeatureModel(featureModel);
+        matrix.restrict(bddService.getFeatureModel());
+        projections.clear();
+        if(cache != null){
+            cache.clear();
+            cacheVersion.clear();
+        }
+    }
+
+    /**
+     * Project the model to one product, i.e. the MDP of that member of the family. Projections are cached,
+     * so projecting the same product again costs a lookup.
+     * @param product String, names of the propositions that are true separated by white space, the others are false
+     * @return ProductMDP
+     */
+    public ProductMDP project(String product){
+        if(projectionsVersion != matrix.modCount()){
+            projections.clear();
+            projectionsVersion = matrix.modCount();
+        }
+        boolean[] valuation = new boolean[bddService.propositions.size()];
+        for(String name : product.trim().split("\\s+")){
+            if(name.length() == 0)
+                continue;
+            int index = -1;
+            for(int i = 0; i < valuation.length && index == -1; i++){
+                if(bddService.propositions.get(i).getElement0().equals(name))
+                    index = i;
+            }
+            if(index == -1)
+                throw new IllegalArgumentException("Unknown proposition " + name);
+            valuation[index] = true;
+        }
+        StringBuilder key = new StringBuilder(valuation.length);
+        for(boolean value : valuation)
+            key.append(value ? '1' : '0');
+        ProductMDP result = projections.get(key.toString());
+        if(result == null){
+            result = new ProductMDP(matrix, bddService.product(valuation));
+            projections.put(key.toString(), result);
+        }
+        return result;
+    }
+
+    /**
+     * Calculate a pctl formula in one product of the family, with plain doubles instead of bdds.
+     * @param input String, formula in prefix form
+     * @param product String, names of the propositions that are true, see project
+     * @return double[], probability per state, 0/1 for state formulas
+     */
+    public double[] sat(String input, String product){
+        ProductMDP projection = project(product);
+        projection.converged = true;
+        double[] result = projection.sat(compile(input), epsilon, maxIterations, gaussSeidel);
+        converged = projection.converged;
+        return result;
+    }
+
+    /**
+     * Save the model as a binary snapshot, that is loaded back by new MDPF(fileName) without parsing.
+     * @param fileName String, should end in .mdpf
+     * @see ModelSnapshot
+     */
+    public void save(String fileName){
+        try {
+            ModelSnapshot.write(fileName, matrix);
+        }catch(IOException e){
+            e.printStackTrace();
+        }
+    }
+
     /**
      * Print MDPF by states, Every State Represent a row of matrix representation
      */
@@ -81,27 +449,371 @@ public class MDPF {
 
     /**
      * Given an string of pctl formula, calculate result based on mdpf
-     * @param input
+     * @param input String, formula in prefix form
+     * @see FormulaParser
      * @return ResultSet that shows action/probability per State
      */
     public ResultSet sat(String input){
-        ArrayList<String> variables = new ArrayList<String>(Arrays.asList(input.split("\\&|\\~|\\$|\\@|U|[0-9]+|\\|")));
-        while(variables.remove(""));
-        StringBuilder formula = new StringBuilder(input);
-        return recParseFormula(formula, variables);
+        return sat(compile(input));
+    }
+
+    /**
+     * Parse a pctl formula once, so it can be evaluated many times. Compiled formulas are cached by their text,
+     * up to the compiled limit.
+     * @param input String, formula in prefix form
+     * @return Formula
+     */
+    public Formula compile(String input){
+        if(!compiled.containsKey(input) && compiled.size() >= compiledLimit)
+            clearCompiled();
+        return compileUnchecked(input);
+    }
+
+    private Formula compileUnchecked(String input){
+        Formula formula = compiled.get(input);
+        if(formula == null){
+            formula = parser.parse(input);
+            compiled.put(input, formula);
+        }
+        return formula;
+    }
+
+    /**
+     * Drop the compiled formulas, the parser hash-conses every subformula it saw and incremental results are kept by
+     * formula, so both go too.
+     */
+    private void clearCompiled(){
+        compiled.clear();
+        parser = new FormulaParser();
+        if(cache != null){
+            cache.clear();
+            cacheVersion.clear();
+        }
+    }
+
+    /**
+     * Calculate results of many pctl formulas at once. Compiled formulas are hash-consed, so the formulas of the batch
+     * share one DAG of distinct subformulas: every subformula is evaluated once and its result is given to all
+     * formulas using it, a copy to all but the last. The compiled limit is checked once for the whole batch, before
+     * compiling any of its formulas, so they all come from the same parser.
+     * @param inputs List of Strings, formulas in prefix form
+     * @return ArrayList of ResultSets, in the order of inputs
+     */
+    public ArrayList<ResultSet> sat(List<String> inputs){
+        int missing = 0;
+        for(String input : inputs){
+            if(!compiled.containsKey(input))
+                missing++;
+        }
+        if(missing > 0 && compiled.size() + missing > compiledLimit)
+            clearCompiled();
+        ArrayList<Formula> formulas = new ArrayList<Formula>();
+        for(String input : inputs)
+            formulas.add(compileUnchecked(input));
+        startQuery();
+        try {
+            if(addModelChecker != null)
+                return addModelChecker.sat(formulas, epsilon, maxIterations, gaussSeidel);
+            shared = new IdentityHashMap<Formula, ResultSet>();
+            uses = new IdentityHashMap<Formula, Integer>();
+            ArrayList<ResultSet> result = new ArrayList<ResultSet>();
+            for(Formula formula : formulas)
+                countUses(formula);
+            for(Formula formula : formulas)
+                result.add(sat(formula));
+            return result;
+        }finally{
+            shared = null;
+            uses = null;
+            endQuery();
+        }
+    }
+
+    private void countUses(Formula formula){
+        Integer count = uses.get(formula);
+        uses.put(formula, count == null ? 1 : count + 1);
+        if(count != null)
+            return;
+        if(formula.getLeft() != null)
+            countUses(formula.getLeft());
+        if(formula.getRight() != null)
+            countUses(formula.getRight());
+    }
+
+    /**
+     * Calculate result of a compiled pctl formula based on mdpf. The bdds made while evaluating are freed when the
+     * outermost sat call returns, the conditions of the result are interned and stay.
+     * @param formula Formula
+     * @return ResultSet that shows action/probability per State
+     * @see BDDService#beginQuery()
+     */
+    public ResultSet sat(Formula formula){
+        startQuery();
+        try {
+            return query(formula);
+        }finally{
+            endQuery();
+        }
+    }
+
+    /**
+     * Start a sat call, the outermost one resets convergence.
+     */
+    private void startQuery(){
+        if(depth++ == 0){
+            converged = true;
+            if(addModelChecker != null)
+                addModelChecker.converged = true;
+            if(symbolicModelChecker != null)
+                symbolicModelChecker.converged = true;
+        }
+        bddService.beginQuery();
+    }
+
+    private void endQuery(){
+        bddService.endQuery();
+        if(--depth == 0){
+            if(addModelChecker != null){
+                if(!addModelChecker.converged)
+                    converged = false;
+                addModelChecker.endQuery();
+            }
+            if(symbolicModelChecker != null){
+                if(!symbolicModelChecker.converged)
+                    converged = false;
+                symbolicModelChecker.endQuery();
+            }
+        }
+    }
+
+    private ResultSet query(Formula formula){
+        if(symbolicModelChecker != null)
+            return symbolicModelChecker.sat(formula, epsilon, maxIterations);
+        if(addModelChecker != null)
+            return addModelChecker.sat(formula, epsilon, maxIterations, gaussSeidel);
+        if(cache != null)
+            return refresh(formula).copy();
+        if(uses == null)
+            return evaluate(formula);
+        ResultSet result = shared.remove(formula);
+        if(result == null)
+            result = evaluate(formula);
+        int remaining = uses.get(formula) - 1;
+        uses.put(formula, remaining);
+        if(remaining == 0)
+            return result;
+        shared.put(formula, result);
+        return result.copy();
+    }
+
+    /**
+     * @return cached result of formula, brought up to date with the edits since it was computed
+     */
+    private ResultSet refresh(Formula formula){
+        int version = matrix.editCount();
+        ResultSet result = cache.get(formula);
+        Integer since = cacheVersion.get(formula);
+        if(result != null && since == version)
+            return result;
+        result = result == null ? evaluate(formula) : update(formula, result, matrix.editedSince(since));
+        cache.put(formula, result);
+        cacheVersion.put(formula, version);
+        return result;
+    }
+
+    /**
+     * Bring the result of formula up to date: next and unbounded until compute only the rows of the affected states,
+     * other formulas that are affected are evaluated again.
+     * @param formula Formula
+     * @param previous ResultSet, result before the edits, reused
+     * @param edited boolean[] per state, sources of the edits
+     * @return ResultSet
+     */
+    private ResultSet update(Formula formula, ResultSet previous, boolean[] edited){
+        boolean[] affected = affected(formula, edited, new IdentityHashMap<Formula, boolean[]>());
+        ArrayList<State> rows = new ArrayList<State>();
+        for(State state : states){
+            if(affected[state.getIndex()])
+                rows.add(state);
+        }
+        if(rows.size() == 0)
+            return previous;
+        switch(formula.getOperator()){
+            case Formula.NEXT: {
+                ResultSet arg = sat(formula.getLeft());
+                ArrayList<ArrayList<Transition>> products = multiplyRows(rows, arg, matrix.workspace(arg));
+                for(int i = 0; i < rows.size(); i++)
+                    previous.set(rows.get(i), products.get(i));
+                return previous.removeZeros();
+            }
+            case Formula.UNTIL:
+            case Formula.EVENTUALLY: {
+                if(formula.getBound() != -1)
+                    return evaluate(formula);
+                ResultSet arg1;
+                if(formula.getOperator() == Formula.EVENTUALLY){
+                    arg1 = new ResultSet(states, stateTable, bddService);
+                    for(int state : getStatesContainingAction("True"))
+                        arg1.setApplicationConditionTrue(state);
+                }
+                else
+                    arg1 = sat(formula.getLeft());
+                ResultSet arg2 = sat(formula.getOperator() == Formula.EVENTUALLY ? formula.getLeft() : formula.getRight());
+                return until(arg1, arg2, previous, affected);
+            }
+            default:
+                return evaluate(formula);
+        }
+    }
+
+    /**
+     * States whose result of formula may change with edits to the rows of edited: edited states for propositions,
+     * states affected in an argument for state formulas, and their predecessors (up to the bound for until) for
+     * next and until.
+     * @param formula Formula
+     * @param edited boolean[] per state, sources of the edits
+     * @param memo IdentityHashMap of the subformulas already visited
+     * @return boolean[] per state
+     */
+    private boolean[] affected(Formula formula, boolean[] edited, IdentityHashMap<Formula, boolean[]> memo){
+        boolean[] result = memo.get(formula);
+        if(result != null)
+            return result;
+        switch(formula.getOperator()){
+            case Formula.PROPOSITION:
+                result = edited;
+                break;
+            case Formula.NOT:
+            case Formula.PROBABILITY:
+                result = affected(formula.getLeft(), edited, memo);
+                break;
+            case Formula.AND:
+            case Formula.OR: {
+                result = affected(formula.getLeft(), edited, memo).clone();
+                boolean[] right = affected(formula.getRight(), edited, memo);
+                for(int s = 0; s < result.length; s++)
+                    result[s] |= right[s];
+                break;
+            }
+            case Formula.NEXT:
+                result = matrix.dependants(affected(formula.getLeft(), edited, memo), null, 1);
+                for(int s = 0; s < result.length; s++)
+                    result[s] |= edited[s];
+                break;
+            default: {
+                boolean[] seeds = affected(formula.getLeft(), edited, memo).clone();
+                boolean[] right = formula.getRight() == null ? edited : affected(formula.getRight(), edited, memo);
+                for(int s = 0; s < seeds.length; s++)
+                    seeds[s] |= right[s] || edited[s];
+                result = matrix.dependants(seeds, null, formula.getBound());
+            }
+        }
+        memo.put(formula, result);
+        return result;
+    }
+
+    private ResultSet evaluate(Formula formula){
+        switch(formula.getOperator()){
+            case Formula.PROPOSITION: {
+                ResultSet result = new ResultSet(states, stateTable, bddService);
+                for(int state : getStatesContainingAction(formula.getName()))
+                    result.setApplicationConditionTrue(state);
+                return result;
+            }
+            case Formula.NOT:
+                return sat(formula.getLeft()).not();
+            case Formula.AND: {
+                ResultSet arg1 = sat(formula.getLeft());
+                ResultSet arg2 = sat(formula.getRight());
+                return arg1.and(arg2);
+            }
+            case Formula.OR: {
+                ResultSet first = sat(formula.getLeft()).not();
+                ResultSet second = sat(formula.getRight()).not();
+                return first.and(second).not();
+            }
+            case Formula.NEXT:
+                return multiply(sat(formula.getLeft())).removeZeros();
+            case Formula.UNTIL:
+            case Formula.EVENTUALLY: { // F T = True U T
+                ResultSet arg1;
+                if(formula.getOperator() == Formula.EVENTUALLY){
+                    arg1 = new ResultSet(states, stateTable, bddService);
+                    for(int state : getStatesContainingAction("True"))
+                        arg1.setApplicationConditionTrue(state);
+                }
+                else
+                    arg1 = sat(formula.getLeft());
+                ResultSet arg2 = sat(formula.getOperator() == Formula.EVENTUALLY ? formula.getLeft() : formula.getRight());
+                if(formula.getBound() == -1)
+                    return until(arg1, arg2, null, null);
+                return boundedUntil(arg1, arg2, formula.getBound());
+            }
+            case Formula.PROBABILITY: { // P~p[T] with ~p holding for every probability (or none) is not evaluated
+                if(formula.isOneSided() && formula.accepts(0) == formula.accepts(1)){
+                    ResultSet result = new ResultSet(states, stateTable, bddService);
+                    if(formula.accepts(0)){
+                        for(int state : getStatesContainingAction("True"))
+                            result.setApplicationConditionTrue(state);
+                    }
+                    return result;
+                }
+                // Sat(T) is computed completely before the bound is applied: a row holds an entry per
+                // non-dominated action choice and the bound is checked per entry, so an entry between its lower and
+                // upper bound can not be decided early as in ADDModelChecker and ProductMDP, which have one value
+                // per product.
+                return sat(formula.getLeft()).bound(formula);
+            }
+            default:
+                return null;
+        }
+    }
+
+    private void readSnapshot(String fileName){
+        try {
+            matrix = ModelSnapshot.read(fileName);
+            bddService = matrix.bddService;
+            stateTable = matrix.states;
+            states = new ArrayList<State>();
+            for(int i = 0; i < stateTable.size(); i++)
+                states.add(new State(stateTable.getName(i), i, matrix));
+        }catch(FileNotFoundException e){
+            System.out.println("File " + fileName + " Not Found");
+        }catch(IOException e){
+            e.printStackTrace();
+        }
     }
 
+    /**
+     * Read a json model with JsonModelReader, every transition is added to the model as soon as it is read.
+     * Transitions that come before "Propositions" and "States" in the file are kept until both are known.
+     */
     private void readJsonFile(String fileName){
         try {
-            FileReader reader = new FileReader(fileName);
-            JSONParser jsonParser = new JSONParser();
-            JSONObject jsonObject = (JSONObject) jsonParser.parse(reader);
-            String variables = (String) jsonObject.get("Propositions");
-            String state_names = (String) jsonObject.get("States");
-            states = readStates(state_names);
-            String[] variables_array = variables.split("\\s+");
-            bddService = new BDDService(variables_array);
-            readTransitionJson(jsonObject);
+            BufferedReader reader = new BufferedReader(new FileReader(fileName));
+            try {
+                JsonModelReader modelReader = new JsonModelReader(reader);
+                ArrayList<String[]> early = new ArrayList<String[]>();
+                while(modelReader.next()){
+                    if(states == null && modelReader.getPropositions() != null && modelReader.getStates() != null)
+                        readHeaderJson(modelReader, early);
+                    if(states == null){
+                        early.add(new String[]{modelReader.getSource(), modelReader.getDestination(), modelReader.getLabel(),
+                                Double.toString(modelReader.getProbability()), modelReader.getApplicationCondition()});
+                        continue;
+                    }
+                    addTransition(modelReader.getSource(), modelReader.getDestination(), modelReader.getLabel(),
+                            modelReader.getProbability(), bddService.internCondition(modelReader.getApplicationCondition()));
+                }
+                if(states == null && modelReader.getPropositions() != null && modelReader.getStates() != null)
+                    readHeaderJson(modelReader, early);
+                if(states == null)
+                    System.out.println("File Format Problem, Propositions or States missing");
+                else if(modelReader.getFeatureModel() != null)
+                    setFeatureModel(modelReader.getFeatureModel());
+            }finally{
+                reader.close();
+            }
         }catch(FileNotFoundException e){
             System.out.println("File " + fileName + " Not Found");
         }catch(ParseException p){
@@ -113,133 +825,223 @@ public class MDPF {
         }
     }
 
-    private void readTransitionJson(JSONObject jsonObject){
-        JSONArray transitions = (JSONArray) jsonObject.get("Transitions");
-        Iterator i = transitions.iterator();
-        while(i.hasNext()){
-            JSONObject currentTransition = (JSONObject) i.next();
-            String source = (String) currentTransition.get("Source");
-            String dest = (String) currentTransition.get("Destination");
-            String action = (String) currentTransition.get("Label");
-            Double probability = (Double) currentTransition.get("Probability");
-            String applicationCondition = (String) currentTransition.get("ApplicationCondition");
-            BDD appCond = bddService.expressionToBDD(new StringBuilder(BDDService.infixToPrefix(applicationCondition)));
-            Transition transition = new Transition(appCond, probability, bddService);
-            for(State state : states){
-                if(state.getName().equals(source))
-                    state.addTransition(action, transition, dest);
-            }
-        }
+    private void readHeaderJson(JsonModelReader modelReader, ArrayList<String[]> early){
+        bddService = new BDDService(modelReader.getPropositions().split("\\s+"));
+        states = readStates(modelReader.getStates());
+        for(String[] t : early)
+            addTransition(t[0], t[1], t[2], Double.parseDouble(t[3]), bddService.internCondition(t[4]));
+        early.clear();
     }
+
     private void readFile(String fileName){
-        File file = new File(fileName);
         try{
-            Scanner scanner = new Scanner(file);
-            String variables_line = scanner.nextLine();
-            String states_name = scanner.nextLine();
-            states = readStates(states_name);
+            BufferedReader reader = new BufferedReader(new FileReader(fileName));
+            String variables_line = reader.readLine();
+            String states_name = reader.readLine();
 
             String[] variables = variables_line.split("\\s+");
             bddService = new BDDService(variables);
-            readTransition(scanner);
+            states = readStates(states_name);
+            readTransition(reader);
+            reader.close();
         }catch(FileNotFoundException e){
             e.printStackTrace();
+        }catch(IOException e){
+            e.printStackTrace();
         }
     }
 
     private ArrayList<State> readStates(String line){
         String[] states_names = line.split("\\s+");
+        stateTable = new SymbolTable();
+        matrix = new TransitionMatrix(stateTable, new SymbolTable(), bddService);
         ArrayList <State> result = new ArrayList<State>();
         for(int i=0; i<states_names.length; i++){
-            State state = new State(states_names[i], states_names);
+            if(stateTable.indexOf(states_names[i]) != -1){
+                System.out.println("State " + states_names[i] + " declared twice");
+                continue;
+            }
+            State state = new State(states_names[i], stateTable.intern(states_names[i]), matrix);
             result.add(state);
         }
         return result;
     }
-    private ArrayList<String> getStatesContainingAction(String label){
-        ArrayList<String> result = new ArrayList<String>();
-        for(State state: states){
-            if(state.hasAction(label) || label.equals("True") && !label.equals("False")){
-                result.add(state.getName());
+    /**
+     * @param label String, action label, True for all states
+     * @return indices of states that have an outgoing transition labeled by label
+     */
+    private int[] getStatesContainingAction(String label){
+        if(label.equals("True")){
+            int[] result = new int[states.size()];
+            for(int i=0; i<result.length; i++)
+                result[i] = i;
+            return result;
+        }
+        int action = matrix.actions.indexOf(label);
+        if(action == -1)
+            return new int[0];
+        return matrix.statesWithAction(action);
+    }
+
+    /**
+     * Read transition lines "startState destenitionState label probability propositionFormula",
+     * fields are cut at white space by index instead of a Scanner per line.
+     */
+    private void readTransition(BufferedReader reader) throws IOException{
+        String transitionExp;
+        int[] bounds = new int[8];
+        while((transitionExp = reader.readLine()) != null){
+            if(!splitFields(transitionExp, bounds))
+                continue;
+            String source = transitionExp.substring(bounds[0], bounds[1]);
+            String dest = transitionExp.substring(bounds[2], bounds[3]);
+            String action = transitionExp.substring(bounds[4], bounds[5]);
+            double probability = Double.parseDouble(transitionExp.substring(bounds[6], bounds[7]));
+            String expression = transitionExp.substring(bounds[7]);
+            addTransition(source, dest, action, probability, bddService.internCondition(expression));
+        }
+    }
+
+    /**
+     * Find start and end of the first four white space separated fields of line.
+     * @return false for a line with less than four fields
+     */
+    private static boolean splitFields(String line, int[] bounds){
+        int i = 0;
+        for(int field = 0; field < 4; field++){
+            while(i < line.length() && Character.isWhitespace(line.charAt(i)))
+                i++;
+            if(i == line.length())
+                return false;
+            bounds[2 * field] = i;
+            while(i < line.length() && !Character.isWhitespace(line.charAt(i)))
+                i++;
+            bounds[2 * field + 1] = i;
+        }
+        return true;
+    }
+
+    private void addTransition(String source, String dest, String action, double probability, int conditionId){
+        int sourceIndex = stateTable.indexOf(source);
+        int destIndex = stateTable.indexOf(dest);
+        if(sourceIndex == -1 || destIndex == -1){
+            System.out.println("Transition " + source + " -> " + dest + " ignored, state not declared");
+            return;
+        }
+        matrix.addTransition(sourceIndex, matrix.actions.intern(action), destIndex, conditionId, probability);
+    }
+
+    /**
+     * Sat(T1 U<=k T2): states in Sat(T2) keep their row of Sat(T2), states in neither set stay empty,
+     * and the remaining states of Sat(T1) take up to k rounds of multiply over the previous vector. <br>
+     * Iteration stops early once a round leaves every row unchanged, so large bounds cost only as many rounds
+     * as the vector needs to converge.
+     * @param arg1 ResultSet of T1
+     * @param arg2 ResultSet of T2
+     * @param bound int, number of steps k
+     * @return ResultSet
+     */
+    private ResultSet boundedUntil(ResultSet arg1, ResultSet arg2, int bound){
+        ArrayList<State> maybe = maybeStates(arg1, arg2);
+        ResultSet current = arg2.copy();
+        for(int i = 0; i < bound && maybe.size() > 0; i++){
+            ResultSet next = current.copy();
+            ArrayList<ArrayList<Transition>> rows = multiplyRows(maybe, current, matrix.workspace(current));
+            boolean changed = false;
+            for(int j = 0; j < maybe.size(); j++){
+                State state = maybe.get(j);
+                if(!current.rowEquals(state.getIndex(), rows.get(j), 0))
+                    changed = true;
+                next.set(state, rows.get(j));
             }
+            if(!changed)
+                break;
+            current = next;
         }
-        return result;
+        return current.removeZeros();
     }
 
-    private ResultSet recParseFormula(StringBuilder formula, ArrayList<String> variables) {
-        if (formula.charAt(0) == '$') {
-            formula.delete(0, variables.get(0).length()+1);
-            ArrayList<String> statesSatisfied = getStatesContainingAction(variables.remove(0));
-            ResultSet result = new ResultSet(states, bddService);
-            for(String state: statesSatisfied)
-                result.setApplicationConditionTrue(state, 1);
-            return result;
+    /**
+     * Sat(T1 U T2) without a bound: value iteration of multiply over the states of maybeStates until no probability
+     * changes more than epsilon, or maxIterations is reached, then isConverged is false. With gaussSeidel each row is
+     * written back as soon as it is computed, so later rows of the same sweep already use it, unless rows are
+     * multiplied in parallel. <br>
+     * Given a previous result, only the rows of affected states are iterated, the others keep their previous row.
+     * @param arg1 ResultSet of T1
+     * @param arg2 ResultSet of T2
+     * @param previous ResultSet, result before edits, or null
+     * @param affected boolean[] per state, states whose row may differ from previous, or null
+     * @return ResultSet
+     */
+    private ResultSet until(ResultSet arg1, ResultSet arg2, ResultSet previous, boolean[] affected){
+        ArrayList<State> maybe = maybeStates(arg1, arg2);
+        ResultSet current = arg2.copy();
+        if(previous != null){
+            ArrayList<State> rows = new ArrayList<State>();
+            for(State state : maybe){
+                if(affected[state.getIndex()])
+                    rows.add(state);
+                else
+                    current.set(state, previous.get(state.getIndex()));
+            }
+            maybe = rows;
         }
-        else if(formula.charAt(0) == '~'){
-            formula.deleteCharAt(0);
-            ResultSet arg1 = recParseFormula(formula, variables);
-            return arg1.not();
-        }
-        else if(formula.charAt(0) == '&') {
-            formula.deleteCharAt(0);
-            ResultSet arg1 = recParseFormula(formula, variables);
-            ResultSet arg2 = recParseFormula(formula, variables);
-            return arg1.and(arg2);
-        }
-        else if(formula.charAt(0) == '|') {
-            formula.deleteCharAt(0);
-            ResultSet arg1 = recParseFormula(formula, variables);
-            ResultSet arg2 = recParseFormula(formula, variables);
-            ResultSet first = arg1.not();
-            ResultSet second = arg2.not();
-            return first.and(second).not();
-        }
-        else if(formula.charAt(0) == '@'){ // Next
-            formula.deleteCharAt(0);
-            ResultSet arg1 = recParseFormula(formula, variables);
-            arg1 = multiply(arg1);
-            return arg1.removeZeros();
-        }
-        else if(formula.charAt(0) == 'U'){ // Bounded Until
-            int count = 0 ;
-            while(++count<formula.length())
-                if(formula.charAt(count) < '0' || formula.charAt(count) > '9') {
-                    System.out.println("#" + formula.charAt(count) + " " + count);
-                    break;
+        boolean converged = maybe.size() == 0;
+        int iteration = 0;
+        while(!converged && iteration < maxIterations){
+            iteration++;
+            converged = true;
+            ResultSet next = current;
+            TransitionMatrix.Workspace workspace = matrix.workspace(current);
+            if(gaussSeidel && executor == null){
+                for(State state : maybe){
+                    ArrayList<Transition> row = matrix.multiplyRow(state.getIndex(), current, workspace);
+                    if(!current.rowEquals(state.getIndex(), row, epsilon))
+                        converged = false;
+                    next.set(state, row);
+                    workspace.update(state.getIndex(), current);
                 }
-            int bound = Integer.parseInt(formula.substring(1,count));
-            formula.delete(0, count);
-            ResultSet arg1 = recParseFormula(formula, variables);
-            ResultSet arg2 = recParseFormula(formula, variables);
+            }
+            else{
+                next = current.copy();
+                ArrayList<ArrayList<Transition>> rows = multiplyRows(maybe, current, workspace);
+                for(int j = 0; j < maybe.size(); j++){
+                    State state = maybe.get(j);
+                    if(!current.rowEquals(state.getIndex(), rows.get(j), epsilon))
+                        converged = false;
+                    next.set(state, rows.get(j));
+                }
+            }
+            current = next;
+        }
+        if(!converged)
+            this.converged = false;
+        return current.removeZeros();
+    }
 
-            System.out.println("Argument 1 Satisfication Set");
-            arg1.print();
-            System.out.println("Argument 2 Satisfication Set");
-            arg2.print();
-            return arg1;
+    /**
+     * States whose until probability has to be computed: states of Sat(T1) outside Sat(T2) that can reach Sat(T2)
+     * through Sat(T1). Graph based prob0 precomputation: the other states of Sat(T1) have probability zero in every
+     * product. States of Sat(T2) are left out too, the until keeps their row of Sat(T2) as it is; no states are
+     * found to have probability one, those are iterated like the rest.
+     * @param arg1 ResultSet of T1
+     * @param arg2 ResultSet of T2
+     * @return ArrayList of States
+     */
+    private ArrayList<State> maybeStates(ResultSet arg1, ResultSet arg2){
+        boolean[] yes = new boolean[states.size()];
+        boolean[] through = new boolean[states.size()];
+        for(State state : states){
+            yes[state.getIndex()] = arg2.rowSize(state.getIndex()) > 0;
+            through[state.getIndex()] = arg1.rowSize(state.getIndex()) > 0;
         }
-        else
-            return null;
-    }
-
-    private void readTransition(Scanner scanner){
-        while(scanner.hasNext()){
-            String transitionExp = scanner.nextLine();
-            Scanner lineScan = new Scanner(transitionExp);
-            String source = lineScan.next();
-            String dest = lineScan.next();
-            String action = lineScan.next();
-            double probability = lineScan.nextDouble();
-            String expression = lineScan.nextLine();
-            expression = BDDService.infixToPrefix(expression);
-            StringBuilder sb = new StringBuilder(expression);
-            BDD appCond = bddService.expressionToBDD(sb);
-            Transition transition = new Transition(appCond, probability, bddService);
-            for(State state : states){
-                if(state.getName().equals(source))
-                    state.addTransition(action, transition, dest);
-            }
+        boolean[] reach = matrix.canReach(yes, through);
+        ArrayList<State> maybe = new ArrayList<State>();
+        for(State state : states){
+            if(!yes[state.getIndex()] && reach[state.getIndex()])
+                maybe.add(state);
         }
+        return maybe;
     }
 
     /**
@@ -248,10 +1050,51 @@ public class MDPF {
      * @return ResultSet of product
      */
     private ResultSet multiply(ResultSet sat){
-        ResultSet result = new ResultSet(states, bddService);
-        for(State state : states){
-            ArrayList<Transition> partial_result = state.multiply(sat);
-            result.set(state, partial_result);
+        ResultSet result = new ResultSet(states, stateTable, bddService);
+        ArrayList<ArrayList<Transition>> rows = multiplyRows(states, sat, matrix.workspace(sat));
+        for(int i = 0; i < states.size(); i++)
+            result.set(states.get(i), rows.get(i));
+        return result;
+    }
+
+    /**
+     * Multiply the rows of the given states with input. With parallelism above 1 the states are cut into chunks
+     * that are multiplied on the executor, each chunk with its own fork of workspace.
+     * @param rows ArrayList of States
+     * @param input ResultSet (columnar matrix)
+     * @param workspace Workspace prepared for input
+     * @return ArrayList of products, the i-th is the product of the i-th state
+     */
+    private ArrayList<ArrayList<Transition>> multiplyRows(final ArrayList<State> rows, final ResultSet input,
+                                                         final TransitionMatrix.Workspace workspace){
+        final ArrayList<ArrayList<Transition>> result =
+                new ArrayList<ArrayList<Transition>>(Collections.<ArrayList<Transition>>nCopies(rows.size(), null));
+        if(executor == null || rows.size() < 2 * parallelism){
+            for(int i = 0; i < rows.size(); i++)
+                result.set(i, matrix.multiplyRow(rows.get(i).getIndex(), input, workspace));
+            return result;
+        }
+        int chunks = parallelism * 4;
+        ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+        for(int c = 0; c < chunks; c++){
+            final int from = (int) ((long) rows.size() * c / chunks);
+            final int to = (int) ((long) rows.size() * (c + 1) / chunks);
+            futures.add(executor.submit(new Runnable() {
+                public void run() {
+                    TransitionMatrix.Workspace local = workspace.fork();
+                    for(int i = from; i < to; i++)
+                        result.set(i, matrix.multiplyRow(rows.get(i).getIndex(), input, local));
+                }
+            }));
+        }
+        try {
+            for(Future<?> future : futures)
+                future.get();
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }catch(ExecutionException e){
+            throw new RuntimeException(e.getCause());
         }
         return result;
     }
@@ -2,9 +2,27 @@ package dadfarnia.ir.MDPF;
 
 import net.sf.jbddi.BDD;
 
+import java.io.IOException;
+
 public class Main {
 
+    /**
+     * "daemon [port] [max transitions]" starts a QueryServer, otherwise runs the example.
+     * @param args String[]
+     */
     public static void main(String[] args) {
+        if(args.length > 0 && args[0].equals("daemon")){
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : QueryServer.DEFAULT_PORT;
+            long maxTransitions = args.length > 2 ? Long.parseLong(args[2]) : QueryServer.DEFAULT_MAX_TRANSITIONS;
+            try {
+                QueryServer server = new QueryServer(port, maxTransitions);
+                System.out.println("Listening on 127.0.0.1:" + server.getPort());
+                server.serve();
+            }catch(IOException e){
+                e.printStackTrace();
+            }
+            return;
+        }
 //        BDDService.infixToPrefix("(x1& x2)| (z&(~t1))");
         System.out.println("Start");
         MDPFExampleTest();
@@ -28,6 +46,7 @@ public class Main {
         model.print();
         System.out.println("###########");
         ResultSet result = model.sat("U3$send$wait");
+        result.print();
     }
 
 }
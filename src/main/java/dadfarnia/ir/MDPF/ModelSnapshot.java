@@ -0,0 +1,216 @@
+package dadfarnia.ir.MDPF;
+import net.sf.javabdd.BDD;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Binary snapshot of a loaded model, so it can be loaded again without parsing text or json and building bdds. <br>
+ * <b> Format </b> (big endian): <br>
+ *      magic "MDPF", version, <br>
+ *      propositions, state names and action labels, each as a count followed by strings (length, UTF-8 bytes), <br>
+ *      bdd node table: count, then (var, low, high) per node, children before parents,
+ *      node 0 is false and node 1 is true and stored nodes are numbered from 2, <br>
+ *      application conditions: count, then the root node of each condition id, -1 for an id reclaimed
+ *      (see BDDService.gc, version 1 and 2 snapshots have none), <br>
+ *      root node of the feature model (since version 2, version 1 snapshots have none), <br>
+ *      transition matrix: number of rows, number of transitions, then stateStart, rowAction, rowStart,
+ *      destination, condition and probability arrays.
+ * @see TransitionMatrix
+ */
+public class ModelSnapshot {
+    /**
+     * "MDPF" in ascii
+     */
+    public static final int MAGIC = 0x4D445046;
+    public static final int VERSION = 3;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Write the model held by matrix to a snapshot file.
+     * @param fileName String
+     * @param matrix TransitionMatrix, its state table, action table and bdd service are written too
+     */
+    public static void write(String fileName, TransitionMatrix matrix) throws IOException{
+        BDDService bddService = matrix.bddService;
+        matrix.size();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            out.writeInt(bddService.propositions.size());
+            for(Pair<String, BDD> proposition : bddService.propositions)
+                writeString(out, proposition.getElement0());
+            writeTable(out, matrix.states);
+            writeTable(out, matrix.actions);
+
+            ArrayList<int[]> nodes = new ArrayList<int[]>();
+            HashMap<BDD, Integer> nodeIds = new HashMap<BDD, Integer>();
+            int[] roots = new int[bddService.conditionCount()];
+            int featureModel;
+            bddService.beginQuery();    // the children of the walk are freed by endQuery
+            try {
+                for(int id = 0; id < roots.length; id++)
+                    roots[id] = bddService.getCondition(id) == null ? -1 : numberNodes(bddService.getCondition(id), bddService, nodes, nodeIds);
+                featureModel = numberNodes(bddService.getFeatureModel(), bddService, nodes, nodeIds);
+            } finally {
+                bddService.endQuery();
+            }
+            out.writeInt(nodes.size());
+            for(int[] node : nodes)
+                writeArray(out, node);
+            writeInts(out, roots);
+            out.writeInt(featureModel);
+
+            out.writeInt(matrix.rowAction.length);
+            out.writeInt(matrix.destination.length);
+            writeArray(out, matrix.stateStart);
+            writeArray(out, matrix.rowAction);
+            writeArray(out, matrix.rowStart);
+            writeArray(out, matrix.destination);
+            writeArray(out, matrix.condition);
+            for(double p : matrix.probability)
+                out.writeDouble(p);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Load a snapshot file through a memory mapped buffer.
+     * @param fileName String
+     * @return TransitionMatrix of the model, with its state table, action table and bdd service
+     * @throws IOException if file is not a snapshot or its version is not supported
+     */
+    public static TransitionMatrix read(String fileName) throws IOException{
+        RandomAccessFile file = new RandomAccessFile(fileName, "r");
+        MappedByteBuffer buffer;
+        try {
+            FileChannel channel = file.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            file.close();
+        }
+        if(buffer.remaining() < 8 || buffer.getInt() != MAGIC)
+            throw new IOException(fileName + " is not an MDPF snapshot");
+        int version = buffer.getInt();
+        if(version < 1 || version > VERSION)
+            throw new IOException("Unsupported MDPF snapshot version " + version);
+
+        String[] propositions = new String[buffer.getInt()];
+        for(int i = 0; i < propositions.length; i++)
+            propositions[i] = readString(buffer);
+        BDDService bddService = new BDDService(propositions);
+        SymbolTable states = readTable(buffer);
+        SymbolTable actions = readTable(buffer);
+
+        BDD[] nodes = new BDD[buffer.getInt() + 2];
+        nodes[0] = bddService.getZero();
+        nodes[1] = bddService.getOne();
+        for(int i = 2; i < nodes.length; i++){
+            int var = buffer.getInt();
+            int low = buffer.getInt();
+            int high = buffer.getInt();
+            nodes[i] = bddService.node(var, nodes[low], nodes[high]);
+        }
+        int[] roots = readArray(buffer, buffer.getInt());
+        for(int root : roots){
+            if(root == -1)
+                bddService.skipId();
+            else
+                bddService.intern(nodes[root]);
+        }
+        if(version >= 2){
+            BDD featureModel = nodes[buffer.getInt()];
+            if(!featureModel.isOne())
+                bddService.setFeatureModel(featureModel);
+        }
+
+        int rows = buffer.getInt();
+        int transitions = buffer.getInt();
+        int[] stateStart = readArray(buffer, states.size() + 1);
+        int[] rowAction = readArray(buffer, rows);
+        int[] rowStart = readArray(buffer, rows + 1);
+        int[] destination = readArray(buffer, transitions);
+        int[] condition = readArray(buffer, transitions);
+        double[] probability = new double[transitions];
+        buffer.asDoubleBuffer().get(probability);
+        return new TransitionMatrix(states, actions, bddService, stateStart, rowAction, rowStart, destination, condition, probability);
+    }
+
+    /**
+     * Give ids to the nodes of b that are not numbered yet, children first. Nodes are kept as (var, low id, high id).
+     * @return int, id of b
+     */
+    private static int numberNodes(BDD b, BDDService bddService, ArrayList<int[]> nodes, HashMap<BDD, Integer> nodeIds){
+        if(b.isZero())
+            return 0;
+        if(b.isOne())
+            return 1;
+        Integer id = nodeIds.get(b);
+        if(id != null)
+            return id;
+        int low = numberNodes(bddService.child(b, false), bddService, nodes, nodeIds);
+        int high = numberNodes(bddService.child(b, true), bddService, nodes, nodeIds);
+        nodes.add(new int[]{b.var(), low, high});
+        nodeIds.put(b, nodes.size() + 1);
+        return nodes.size() + 1;
+    }
+
+    private static void writeTable(DataOutputStream out, SymbolTable table) throws IOException{
+        out.writeInt(table.size());
+        for(int i = 0; i < table.size(); i++)
+            writeString(out, table.getName(i));
+    }
+
+    private static SymbolTable readTable(ByteBuffer buffer){
+        SymbolTable table = new SymbolTable();
+        int size = buffer.getInt();
+        for(int i = 0; i < size; i++)
+            table.intern(readString(buffer));
+        return table;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException{
+        byte[] bytes = s.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer){
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static void writeInts(DataOutputStream out, int[] array) throws IOException{
+        out.writeInt(array.length);
+        writeArray(out, array);
+    }
+
+    private static void writeArray(DataOutputStream out, int[] array) throws IOException{
+        for(int value : array)
+            out.writeInt(value);
+    }
+
+    /**
+     * Bulk copy length ints from buffer and move past them.
+     */
+    private static int[] readArray(ByteBuffer buffer, int length){
+        int[] result = new int[length];
+        buffer.asIntBuffer().get(result);
+        buffer.position(buffer.position() + 4 * length);
+        return result;
+    }
+}
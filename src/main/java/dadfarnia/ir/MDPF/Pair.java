@@ -17,4 +17,18 @@ public class Pair<K, V> {
         return element1;
     }
 
+    public boolean equals(Object o) {
+        if (!(o instanceof Pair))
+            return false;
+        Pair<?, ?> that = (Pair<?, ?>) o;
+        return (element0 == null ? that.element0 == null : element0.equals(that.element0))
+                && (element1 == null ? that.element1 == null : element1.equals(that.element1));
+    }
+
+    public int hashCode() {
+        int h0 = element0 == null ? 0 : element0.hashCode();
+        int h1 = element1 == null ? 0 : element1.hashCode();
+        return 31 * h0 + h1;
+    }
+
 }
\ No newline at end of file
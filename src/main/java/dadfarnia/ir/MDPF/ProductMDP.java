@@ -0,0 +1,238 @@
+package dadfarnia.ir.MDPF;
+import net.sf.javabdd.BDD;
+
+import java.util.Arrays;
+
+/**
+ * The MDP of one product of an MDPF: every application condition is restricted to the product, transitions whose
+ * condition does not hold are dropped and the others keep only destination and probability, in compressed sparse
+ * row form like TransitionMatrix. <br>
+ * Formulas are evaluated to a double per state with the semantics of ADDModelChecker for that product: state
+ * formulas are 0/1, next and until sum over the transitions of an action and take the minimum over the actions
+ * the product enables, 0 where it enables none.
+ * @see MDPF#project(String)
+ */
+public class ProductMDP {
+    private TransitionMatrix matrix;
+    private int numberOfStates;
+    private int[] stateStart;
+    private int[] rowStart;
+    private int[] destination;
+    private double[] probability;
+    /**
+     * False once an unbounded until stopped after maxIterations without converging, reset by MDPF per query.
+     * @see MDPF#isConverged()
+     */
+    boolean converged = true;
+
+    /**
+     * Project matrix to a product.
+     * @param matrix TransitionMatrix of the MDPF
+     * @param product BDD, cube of the product (every proposition, negated or not)
+     */
+    ProductMDP(TransitionMatrix matrix, BDD product){
+        this.matrix = matrix;
+        BDDService bddService = matrix.bddService;
+        matrix.size();
+        numberOfStates = matrix.stateStart.length - 1;
+        int[] holds = new int[bddService.conditionCount()];    // 0 unknown, 1 holds, 2 does not
+        stateStart = new int[numberOfStates + 1];
+        rowStart = new int[matrix.rowAction.length + 1];
+        destination = new int[matrix.destination.length];
+        probability = new double[matrix.destination.length];
+        int e = 0;
+        int r = 0;
+        for(int s = 0; s < numberOfStates; s++){
+            for(int row = matrix.stateStart[s]; row < matrix.stateStart[s + 1]; row++){
+                int start = e;
+                for(int old = matrix.rowStart[row]; old < matrix.rowStart[row + 1]; old++){
+                    int c = matrix.condition[old];
+                    if(holds[c] == 0)
+                        holds[c] = bddService.holds(bddService.getCondition(c), product) ? 1 : 2;
+                    if(holds[c] == 2)
+                        continue;
+                    destination[e] = matrix.destination[old];
+                    probability[e] = matrix.probability[old];
+                    e++;
+                }
+                if(e > start){
+                    rowStart[r] = start;
+                    r++;
+                }
+            }
+            stateStart[s + 1] = r;
+        }
+        rowStart[r] = e;
+        rowStart = Arrays.copyOf(rowStart, r + 1);
+        destination = Arrays.copyOf(destination, e);
+        probability = Arrays.copyOf(probability, e);
+    }
+
+    /**
+     * @return number of transitions enabled in the product
+     */
+    public int size(){
+        return destination.length;
+    }
+
+    /**
+     * @param formula Formula
+     * @param epsilon double, convergence threshold of unbounded until
+     * @param maxIterations int, iteration cap of unbounded until
+     * @param gaussSeidel boolean, in-place updates in unbounded until
+     * @return double[], value of formula in every state
+     */
+    public double[] sat(Formula formula, double epsilon, int maxIterations, boolean gaussSeidel){
+        switch(formula.getOperator()){
+            case Formula.PROPOSITION: {
+                double[] result = new double[numberOfStates];
+                if(formula.getName().equals("True"))
+                    Arrays.fill(result, 1);
+                else{
+                    int action = matrix.actions.indexOf(formula.getName());
+                    if(action != -1){
+                        for(int s : matrix.statesWithAction(action))
+                            result[s] = 1;
+                    }
+                }
+                return result;
+            }
+            case Formula.NOT: {
+                double[] result = sat(formula.getLeft(), epsilon, maxIterations, gaussSeidel);
+                for(int s = 0; s < numberOfStates; s++)
+                    result[s] = result[s] == 0 ? 1 : 0;
+                return result;
+            }
+            case Formula.AND:
+            case Formula.OR: {
+                double[] first = sat(formula.getLeft(), epsilon, maxIterations, gaussSeidel);
+                double[] second = sat(formula.getRight(), epsilon, maxIterations, gaussSeidel);
+                for(int s = 0; s < numberOfStates; s++){
+                    boolean a = first[s] != 0;
+                    boolean b = second[s] != 0;
+                    first[s] = (formula.getOperator() == Formula.AND ? a && b : a || b) ? 1 : 0;
+                }
+                return first;
+            }
+            case Formula.NEXT: {
+                double[] arg = sat(formula.getLeft(), epsilon, maxIterations, gaussSeidel);
+                double[] result = new double[numberOfStates];
+                for(int s = 0; s < numberOfStates; s++)
+                    result[s] = multiplyRow(s, arg);
+                return result;
+            }
+            case Formula.UNTIL:
+            case Formula.EVENTUALLY: {
+                double[] arg1;
+                double[] arg2;
+                if(formula.getOperator() == Formula.EVENTUALLY){
+                    arg1 = new double[numberOfStates];
+                    Arrays.fill(arg1, 1);
+                    arg2 = sat(formula.getLeft(), epsilon, maxIterations, gaussSeidel);
+                }
+                else{
+                    arg1 = sat(formula.getLeft(), epsilon, maxIterations, gaussSeidel);
+                    arg2 = sat(formula.getRight(), epsilon, maxIterations, gaussSeidel);
+                }
+                return until(arg1, arg2, formula.getBound(), epsilon, maxIterations, gaussSeidel, null);
+            }
+            case Formula.PROBABILITY: {
+                Formula arg = formula.getLeft();
+                double[] result;
+                if(formula.isOneSided() && (arg.getOperator() == Formula.UNTIL || arg.getOperator() == Formula.EVENTUALLY)){
+                    double[] arg1;
+                    double[] arg2;
+                    if(arg.getOperator() == Formula.EVENTUALLY){
+                        arg1 = new double[numberOfStates];
+                        Arrays.fill(arg1, 1);
+                        arg2 = sat(arg.getLeft(), epsilon, maxIterations, gaussSeidel);
+                    }
+                    else{
+                        arg1 = sat(arg.getLeft(), epsilon, maxIterations, gaussSeidel);
+                        arg2 = sat(arg.getRight(), epsilon, maxIterations, gaussSeidel);
+                    }
+                    result = until(arg1, arg2, arg.getBound(), epsilon, maxIterations, gaussSeidel, formula);
+                }
+                else
+                    result = sat(arg, epsilon, maxIterations, gaussSeidel);
+                for(int s = 0; s < numberOfStates; s++)
+                    result[s] = formula.accepts(result[s]) ? 1 : 0;
+                return result;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown operator " + formula.getOperator());
+        }
+    }
+
+    /**
+     * Minimum over the enabled actions of state of the sum of probability * input value of the destination,
+     * 0 if no action is enabled.
+     */
+    private double multiplyRow(int state, double[] input){
+        if(stateStart[state] == stateStart[state + 1])
+            return 0;
+        double result = Double.POSITIVE_INFINITY;
+        for(int r = stateStart[state]; r < stateStart[state + 1]; r++){
+            double sum = 0;
+            for(int e = rowStart[r]; e < rowStart[r + 1]; e++)
+                sum += probability[e] * input[destination[e]];
+            result = Math.min(result, sum);
+        }
+        return result;
+    }
+
+    /**
+     * Sat(T1 U T2): value of T2 where T2 holds, the product of the row with the previous values where only T1
+     * holds and 0 elsewhere. With bound -1 iterates until no value changes more than epsilon, otherwise for bound
+     * steps; both stop once an iteration changes nothing. Given a one-sided P~p[...] bound, stops as soon as every
+     * state is decided by its value and an upper bound iterated from 1, like ADDModelChecker.
+     * @param bound Formula, P~p[T1 U T2] node, or null
+     */
+    private double[] until(double[] arg1, double[] arg2, int steps, double epsilon, int maxIterations, boolean gaussSeidel, Formula bound){
+        int[] active = new int[numberOfStates];
+        int count = 0;
+        for(int s = 0; s < numberOfStates; s++){
+            if(arg1[s] != 0 && arg2[s] == 0)
+                active[count++] = s;
+        }
+        double[] current = arg2.clone();
+        double[] upper = null;
+        if(bound != null){
+            upper = arg2.clone();
+            for(int k = 0; k < count; k++)
+                upper[active[k]] = 1;
+        }
+        boolean unbounded = steps == -1;
+        if(unbounded)
+            steps = maxIterations;
+        boolean converged = count == 0;
+        for(int i = 0; i < steps && !converged; i++){
+            double[] next = gaussSeidel && unbounded ? current : current.clone();
+            double change = 0;
+            for(int k = 0; k < count; k++){
+                int s = active[k];
+                double value = multiplyRow(s, current);
+                change = Math.max(change, Math.abs(value - current[s]));
+                next[s] = value;
+            }
+            current = next;
+            converged = change == 0 || (unbounded && change <= epsilon);
+            if(upper != null && !converged){
+                double[] nextUpper = gaussSeidel && unbounded ? upper : upper.clone();
+                boolean decided = true;
+                for(int k = 0; k < count; k++){
+                    int s = active[k];
+                    nextUpper[s] = multiplyRow(s, upper);
+                    if(bound.accepts(current[s]) != bound.accepts(nextUpper[s]))
+                        decided = false;
+                }
+                upper = nextUpper;
+                if(decided)
+                    return current;
+            }
+        }
+        if(unbounded && !converged)
+            this.converged = false;
+        return current;
+    }
+}
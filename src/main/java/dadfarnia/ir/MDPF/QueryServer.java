@@ -0,0 +1,433 @@
+package dadfarnia.ir.MDPF;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Query daemon: keeps loaded models in memory and answers sat queries over a loopback socket, so queries do not pay
+ * JVM startup and model loading every time. <br>
+ * <b>protocol</b>: a request is one json object per line, answered by one json object per line.
+ * <pre>
+ *  {"op": "load", "model": path}                   -> {"ok": true, "hash": ..., "states": 5, "transitions": 12, "cached": false}
+ *  {"op": "sat", "model": path, "formula": "@$send"} -> {"ok": true, "result": {"s0": [{"condition": "B", "probability": 0.8}, ...], ...}, "converged": true}
+ *  {"op": "sat", "model": path, "formulas": [...]}   -> {"ok": true, "results": [{...}, ...], "converged": true}
+ *  {"op": "evict", "model": path}                  -> {"ok": true, "evicted": 1}
+ *  {"op": "stats"}                                 -> {"ok": true, "models": 1, "transitions": 12, ...}
+ *  {"op": "shutdown"}                              -> {"ok": true}
+ * </pre>
+ * "converged" is false when an unbounded until stopped at the iteration cap, see MDPF.isConverged. Failures are
+ * answered by {"ok": false, "error": message}. Formulas are in prefix form (see FormulaParser), models
+ * in any format new MDPF(path) reads. <br>
+ * Models are cached by canonical path and hash of the file content, so a changed file is loaded again. The file is
+ * not hashed again while its modification time and length are the ones it was hashed with and that modification
+ * time was more than MTIME_GRANULARITY before the hash, so an edit keeping the length within one tick of the file
+ * system clock is still seen. The cache drops the least recently used models once the cached models together have
+ * more than maxTransitions transitions. <br>
+ * Only transitions are counted: the bdd node table and memos of a model are not, stats reports them per model
+ * (see BDDService.getStatistics). They are bounded by the memo limit of its BDDService, at most COMPILED_LIMIT
+ * compiled formulas and BDDService.gc, run after a sat request once GC_CONDITIONS conditions were interned by queries
+ * since the last one, so a model does not grow with the number of distinct formulas asked.
+ * Queries on one model are answered one at a time, queries on different models in parallel.
+ */
+public class QueryServer {
+    public static final int DEFAULT_PORT = 7455;
+    public static final long DEFAULT_MAX_TRANSITIONS = 10000000;
+    /**
+     * Compiled formula limit of the cached models.
+     * @see MDPF#setCompiledLimit(int)
+     */
+    public static final int COMPILED_LIMIT = 1000;
+    /**
+     * Number of conditions interned by queries on a model between two BDDService.gc calls.
+     */
+    public static final int GC_CONDITIONS = 1000;
+    /**
+     * Modification times are trusted only when older than this many milliseconds at the time of the hash,
+     * two seconds being the coarsest granularity of common file systems.
+     */
+    public static final long MTIME_GRANULARITY = 2000;
+
+    private ServerSocket serverSocket;
+    private ExecutorService connections;
+    private volatile boolean closed;
+    /**
+     * Cached models by path + '\n' + content hash, least recently used first.
+     */
+    private LinkedHashMap<String, CachedModel> cache;
+    private long maxTransitions;
+    private long transitions;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long hashes;
+
+    private static class CachedModel {
+        String path;
+        String hash;
+        /**
+         * Modification time and length of the file when hash was computed, and the time it was computed.
+         */
+        long modified;
+        long length;
+        long hashed;
+        MDPF model;
+        int size;
+        int uses;
+        /**
+         * BDDService.gc is run once the model has this many conditions interned by queries.
+         */
+        int gcAt = GC_CONDITIONS;
+    }
+
+    /**
+     * Listen on the loopback interface.
+     * @param port int, 0 for any free port
+     * @param maxTransitions long, bound of the total number of transitions of the cached models
+     * @throws IOException if the port can not be bound
+     */
+    public QueryServer(int port, long maxTransitions) throws IOException {
+        this.maxTransitions = maxTransitions;
+        serverSocket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+        cache = new LinkedHashMap<String, CachedModel>(16, 0.75f, true);
+        connections = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MDPF-connection");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @return int, port the server listens on
+     */
+    public int getPort(){
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accept connections until close is called or a shutdown request is answered.
+     */
+    public void serve(){
+        while(!closed){
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            }catch(IOException e){
+                if(!closed)
+                    e.printStackTrace();
+                break;
+            }
+            connections.execute(new Runnable() {
+                public void run() {
+                    serve(socket);
+                }
+            });
+        }
+    }
+
+    /**
+     * Serve in a background daemon thread.
+     */
+    public void start(){
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                serve();
+            }
+        }, "MDPF-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop accepting connections, the cached models are dropped.
+     */
+    public void close(){
+        closed = true;
+        try {
+            serverSocket.close();
+        }catch(IOException e){
+            e.printStackTrace();
+        }
+        connections.shutdown();
+        synchronized (cache){
+            cache.clear();
+            transitions = 0;
+        }
+    }
+
+    private void serve(Socket socket){
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+            String line;
+            while(!closed && (line = in.readLine()) != null){
+                if(line.trim().length() == 0)
+                    continue;
+                Map<String, Object> response = new LinkedHashMap<String, Object>();
+                boolean shutdown = handle(line, response);
+                out.write(JSONValue.toJSONString(response));
+                out.write('\n');
+                out.flush();
+                if(shutdown)
+                    close();
+            }
+        }catch(IOException e){
+            if(!closed)
+                e.printStackTrace();
+        }finally{
+            try {
+                socket.close();
+            }catch(IOException e){
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Answer one request.
+     * @param request String, json object
+     * @param response Map to fill with the json fields of the answer
+     * @return boolean, true for a shutdown request
+     */
+    boolean handle(String request, Map<String, Object> response){
+        response.put("ok", true);
+        try {
+            Object parsed = new JSONParser().parse(request);
+            if(!(parsed instanceof Map))
+                throw new IllegalArgumentException("Request is not a json object");
+            Map<?, ?> fields = (Map<?, ?>) parsed;
+            String op = (String) fields.get("op");
+            if("load".equals(op)){
+                CachedModel cached = get(path(fields));
+                response.put("hash", cached.hash);
+                response.put("states", cached.model.getStates().size());
+                response.put("transitions", cached.size);
+                response.put("cached", cached.uses > 1);
+            }
+            else if("sat".equals(op)){
+                CachedModel cached = get(path(fields));
+                synchronized (cached.model){
+                    if(fields.get("formula") != null)
+                        response.put("result", toJson(cached.model, cached.model.sat((String) fields.get("formula"))));
+                    else if(fields.get("formulas") instanceof List){
+                        ArrayList<String> formulas = new ArrayList<String>();
+                        for(Object formula : (List<?>) fields.get("formulas"))
+                            formulas.add((String) formula);
+                        ArrayList<Object> results = new ArrayList<Object>();
+                        for(ResultSet result : cached.model.sat(formulas))
+                            results.add(toJson(cached.model, result));
+                        response.put("results", results);
+                    }
+                    else
+                        throw new IllegalArgumentException("Missing formula");
+                    response.put("converged", cached.model.isConverged());
+                    BDDService bddService = cached.model.getBDDService();
+                    if(bddService.queryConditionCount() >= cached.gcAt){    // the results were dropped after toJson
+                        bddService.gc();
+                        cached.gcAt = bddService.queryConditionCount() + GC_CONDITIONS;
+                    }
+                }
+            }
+            else if("evict".equals(op))
+                response.put("evicted", evict(path(fields)));
+            else if("stats".equals(op)){
+                synchronized (cache){
+                    response.put("models", cache.size());
+                    response.put("transitions", transitions);
+                    response.put("maxTransitions", maxTransitions);
+                    response.put("hits", hits);
+                    response.put("misses", misses);
+                    response.put("evictions", evictions);
+                    response.put("hashes", hashes);
+                    Map<String, Object> bdds = new LinkedHashMap<String, Object>();
+                    for(CachedModel cached : cache.values())
+                        bdds.put(cached.path, cached.model.getBDDService().getStatistics());
+                    response.put("bdds", bdds);
+                }
+            }
+            else if("shutdown".equals(op))
+                return true;
+            else
+                throw new IllegalArgumentException("Unknown op " + op);
+        }catch(ParseException e){
+            error(response, "Bad json at position " + e.getPosition());
+        }catch(IOException e){
+            error(response, e.toString());
+        }catch(RuntimeException e){
+            error(response, e.getMessage() != null ? e.getMessage() : e.toString());
+        }
+        return false;
+    }
+
+    private static void error(Map<String, Object> response, String message){
+        response.clear();
+        response.put("ok", false);
+        response.put("error", message);
+    }
+
+    private static String path(Map<?, ?> fields) throws IOException {
+        Object model = fields.get("model");
+        if(!(model instanceof String))
+            throw new IllegalArgumentException("Missing model");
+        return new File((String) model).getCanonicalPath();
+    }
+
+    /**
+     * Cached model of the current content of the file at path, loaded if it is not cached. Models of an older content
+     * of the file are dropped. The cached model of path is taken without hashing the file while the modification
+     * time and length of the file are the ones it was hashed with, and that modification time was older than
+     * MTIME_GRANULARITY when the file was hashed: a later edit then gets a later modification time.
+     */
+    private CachedModel get(String path) throws IOException {
+        File file = new File(path);
+        long modified = file.lastModified();
+        long length = file.length();
+        synchronized (cache){
+            String unchanged = null;
+            for(CachedModel cached : cache.values()){
+                if(cached.path.equals(path) && cached.modified == modified && cached.length == length
+                        && cached.modified < cached.hashed - MTIME_GRANULARITY)
+                    unchanged = path + '\n' + cached.hash;
+            }
+            if(unchanged != null){
+                CachedModel cached = cache.get(unchanged);
+                hits++;
+                cached.uses++;
+                return cached;
+            }
+        }
+        long hashed = System.currentTimeMillis();
+        String hash = hash(path);
+        String key = path + '\n' + hash;
+        synchronized (cache){
+            hashes++;
+            CachedModel cached = cache.get(key);
+            if(cached != null){    // touched or modified recently, content is the same
+                hits++;
+                cached.uses++;
+                cached.modified = modified;
+                cached.length = length;
+                cached.hashed = hashed;
+                return cached;
+            }
+            misses++;
+        }
+        CachedModel loaded = new CachedModel();
+        loaded.path = path;
+        loaded.hash = hash;
+        loaded.modified = modified;
+        loaded.length = length;
+        loaded.hashed = hashed;
+        loaded.model = new MDPF(path);
+        if(loaded.model.getStates() == null)
+            throw new IllegalArgumentException("Could not load " + path);
+        loaded.model.setCompiledLimit(COMPILED_LIMIT);
+        loaded.size = loaded.model.size();
+        loaded.uses = 1;
+        synchronized (cache){
+            CachedModel cached = cache.get(key);
+            if(cached != null){    // loaded meanwhile by another connection
+                cached.uses++;
+                return cached;
+            }
+            evict(path);
+            cache.put(key, loaded);
+            transitions += loaded.size;
+            Iterator<CachedModel> eldest = cache.values().iterator();
+            while(transitions > maxTransitions && cache.size() > 1){
+                CachedModel model = eldest.next();
+                eldest.remove();
+                transitions -= model.size;
+                evictions++;
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Drop the cached models of path.
+     * @return int, number of models dropped
+     */
+    private int evict(String path){
+        int result = 0;
+        synchronized (cache){
+            for(Iterator<CachedModel> i = cache.values().iterator(); i.hasNext(); ){
+                CachedModel model = i.next();
+                if(model.path.equals(path)){
+                    i.remove();
+                    transitions -= model.size;
+                    result++;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return String, hex SHA-1 of the content of the file
+     */
+    private static String hash(String path) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        }catch(NoSuchAlgorithmException e){
+            throw new RuntimeException(e);    // every java platform has SHA-1
+        }
+        InputStream in = new FileInputStream(path);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while((read = in.read(buffer)) != -1)
+                digest.update(buffer, 0, read);
+        }finally{
+            in.close();
+        }
+        StringBuilder result = new StringBuilder();
+        for(byte b : digest.digest())
+            result.append(String.format("%02x", b));
+        return result.toString();
+    }
+
+    /**
+     * Json form of a result set: state name -> list of {"condition", "probability"}, conditions with their shared
+     * subterms, see BDDService.writeShared.
+     */
+    private static Map<String, Object> toJson(MDPF model, ResultSet result){
+        BDDService bddService = model.getBDDService();
+        Map<String, Object> states = new LinkedHashMap<String, Object>();
+        for(int i = 0; i < result.size(); i++){
+            ArrayList<Object> row = new ArrayList<Object>();
+            for(Transition transition : result.get(i)){
+                Map<String, Object> entry = new LinkedHashMap<String, Object>();
+                entry.put("condition", bddService.toSharedString(transition.getApplicationCondition()));
+                entry.put("probability", transition.getProbability());
+                row.add(entry);
+            }
+            states.put(model.getStates().get(i).getName(), row);
+        }
+        return states;
+    }
+}
@@ -1,29 +1,68 @@
 package dadfarnia.ir.MDPF;
+import net.sf.javabdd.BDD;
+
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
+import java.util.Arrays;
+import java.util.BitSet;
 
 /**
  * The result of applying a condition (in the form of PCTL formula) to an MDPF represent in a ResultSet
- * Contains Hashmap of state to valid transitions, as the columnar matrix represent in article.
+ * Contains a row of valid transitions per state, indexed like the states, as the columnar matrix represent in article. <br>
+ * Rows are stored in two parallel pools, condition ids interned by the BDDService and probabilities, and row s is
+ * pool entries rowStart[s] .. rowStart[s]+rowSize[s]-1. A row that does not fit where it is moves to the end of
+ * the pools, and the pools are compacted once more than half of them is unused. rowSize, conditionAt and
+ * probabilityAt read rows without allocating, get builds Transitions for callers that want them.
  */
 public class ResultSet {
-    HashMap<String, ArrayList<Transition>> results;
     ArrayList<State> states;
+    /**
+     * state name -> row index
+     */
+    SymbolTable stateTable;
     BDDService bddService;
 
+    private int[] rowStart;
+    private int[] rowSize;
+    private int[] conditionPool;
+    private double[] probabilityPool;
+    private int poolSize;
+    /**
+     * Number of pool entries no row uses any more
+     */
+    private int garbage;
+
     /**
      * Constructor of Resultset
      * @param states states of the mdpf that the result set is defined on.
      * @param bddService injected bddservice from mdpf
      */
     public ResultSet(ArrayList<State> states, BDDService bddService){
-        results = new HashMap<String, ArrayList<Transition>>();
+        this(states, tableOf(states), bddService);
+    }
+
+    /**
+     * Constructor of Resultset sharing the state table of the mdpf
+     * @param states states of the mdpf that the result set is defined on.
+     * @param stateTable state name -> index of the mdpf
+     * @param bddService injected bddservice from mdpf
+     */
+    ResultSet(ArrayList<State> states, SymbolTable stateTable, BDDService bddService){
         this.states = states;
+        this.stateTable = stateTable;
         this.bddService = bddService;
-        for(State state: states){
-            results.put(state.getName(), new ArrayList<Transition>());
-        }
+        rowStart = new int[states.size()];
+        rowSize = new int[states.size()];
+        conditionPool = new int[Math.max(16, states.size())];
+        probabilityPool = new double[conditionPool.length];
+        bddService.track(this);
+    }
+
+    private static SymbolTable tableOf(ArrayList<State> states){
+        SymbolTable table = new SymbolTable();
+        for(State state : states)
+            table.intern(state.getName());
+        return table;
     }
 
     /**
@@ -32,9 +71,21 @@ public class ResultSet {
      * @param value the probability that should add
      */
     public void setApplicationConditionTrue(String key, int value){
-        if(value == 1) {
-            results.get(key).add(new Transition(bddService.getOne(), 1, bddService));
-        }
+        int index = stateTable.indexOf(key);
+        if(value == 1 && index != -1)
+            setApplicationConditionTrue(index);
+    }
+
+    /**
+     * Add True/1 element (transition) to state
+     * @param index int, index of state
+     */
+    public void setApplicationConditionTrue(int index){
+        int size = rowSize[index];
+        reserve(index, size + 1);
+        conditionPool[rowStart[index] + size] = bddService.intern(bddService.getOne());
+        probabilityPool[rowStart[index] + size] = 1;
+        rowSize[index] = size + 1;
     }
 
     /**
@@ -43,7 +94,65 @@ public class ResultSet {
      * @param transition arraylist of transitions (arrylist proposition/probability pairs)
      */
     public void set(State key, ArrayList<Transition> transition){
-        results.put(key.getName(), transition);
+        int index = key.getIndex();
+        reserve(index, transition.size());
+        int start = rowStart[index];
+        for(int i = 0; i < transition.size(); i++){
+            conditionPool[start + i] = bddService.intern(transition.get(i).getApplicationCondition());
+            probabilityPool[start + i] = transition.get(i).getProbability();
+        }
+        rowSize[index] = transition.size();
+    }
+
+    /**
+     * Set a row from parallel arrays, the arrays are copied.
+     * @param index int, index of state
+     * @param conditions int[], condition ids of the BDDService
+     * @param probabilities double[]
+     * @param count int, number of entries to take from the arrays
+     */
+    public void setRow(int index, int[] conditions, double[] probabilities, int count){
+        reserve(index, count);
+        System.arraycopy(conditions, 0, conditionPool, rowStart[index], count);
+        System.arraycopy(probabilities, 0, probabilityPool, rowStart[index], count);
+        rowSize[index] = count;
+    }
+
+    /**
+     * Set the condition ids the rows refer to.
+     * @param live BitSet of condition ids
+     */
+    void markConditions(BitSet live){
+        for(int s = 0; s < rowSize.length; s++){
+            for(int i = rowStart[s]; i < rowStart[s] + rowSize[s]; i++)
+                live.set(conditionPool[i]);
+        }
+    }
+
+    /**
+     * @param index int, index of state
+     * @return number of entries in the row of the state
+     */
+    public int rowSize(int index){
+        return rowSize[index];
+    }
+
+    /**
+     * @param index int, index of state
+     * @param i int, position in the row
+     * @return condition id of the i-th entry, see BDDService.getCondition
+     */
+    public int conditionAt(int index, int i){
+        return conditionPool[rowStart[index] + i];
+    }
+
+    /**
+     * @param index int, index of state
+     * @param i int, position in the row
+     * @return probability of the i-th entry
+     */
+    public double probabilityAt(int index, int i){
+        return probabilityPool[rowStart[index] + i];
     }
 
     /**
@@ -51,7 +160,7 @@ public class ResultSet {
      * @return size of the results, should be the same as number of states
      */
     public int size(){
-        return results.size();
+        return rowSize.length;
     }
 
     /**
@@ -62,28 +171,94 @@ public class ResultSet {
     public boolean equals(ResultSet that){
         if(that.size() != this.size())
             return false;
-        List keys = new ArrayList(results.keySet());
-        for(int i=0; i<keys.size(); i++){
-            if(! this.results.get(keys.get(i)).equals(that.results.get(keys.get(i)))){
+        for(int i=0; i<size(); i++){
+            if(!that.rowEquals(i, this, i, 0)){
                return false;
             }
         }
         return true;
     }
 
+    /**
+     * Compare a row with a row of another result set, as Transition.equals: same size and every entry of this
+     * row has an entry with the same condition and a probability within epsilon in the other.
+     * @param index int, index of state in this
+     * @param that ResultSet, sharing the BDDService of this
+     * @param thatIndex int, index of state in that
+     * @param epsilon double
+     * @return boolean
+     */
+    boolean rowEquals(int index, ResultSet that, int thatIndex, double epsilon){
+        int size = rowSize[index];
+        if(size != that.rowSize[thatIndex])
+            return false;
+        int start = rowStart[index];
+        int thatStart = that.rowStart[thatIndex];
+        for(int i = 0; i < size; i++){
+            boolean found = false;
+            for(int j = 0; j < size; j++){
+                if(conditionPool[start + i] == that.conditionPool[thatStart + j]
+                        && Math.abs(probabilityPool[start + i] - that.probabilityPool[thatStart + j]) <= epsilon){
+                    found = true;
+                    break;
+                }
+            }
+            if(!found)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compare a row with a list of Transitions, as Transition.equals.
+     * @param index int, index of state
+     * @param row ArrayList of Transitions
+     * @param epsilon double
+     * @return boolean
+     */
+    boolean rowEquals(int index, ArrayList<Transition> row, double epsilon){
+        if(rowSize[index] != row.size())
+            return false;
+        for(int i = rowStart[index]; i < rowStart[index] + rowSize[index]; i++){
+            BDD condition = bddService.getCondition(conditionPool[i]);
+            boolean found = false;
+            for(Transition t : row){
+                if(Math.abs(probabilityPool[i] - t.getProbability()) <= epsilon && condition.equals(t.getApplicationCondition())){
+                    found = true;
+                    break;
+                }
+            }
+            if(!found)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Copy of this ResultSet, rows are copied so the copy can be changed without touching this one.
+     * The copy is compacted.
+     * @return ResultSet
+     */
+    public ResultSet copy(){
+        ResultSet result = new ResultSet(states, stateTable, bddService);
+        result.conditionPool = new int[Math.max(16, poolSize - garbage)];
+        result.probabilityPool = new double[result.conditionPool.length];
+        result.poolSize = copyRows(result.conditionPool, result.probabilityPool, result.rowStart);
+        System.arraycopy(rowSize, 0, result.rowSize, 0, rowSize.length);
+        return result;
+    }
+
     /**
      * Sat(~T) = {(s, ~w)|(s, w) E Sat(T)}
      *           U { (s,true) | s E Dom ( Sat (T) ) }
      * @return Satisficaiton Result (ResultSet)
      */
     public ResultSet not(){
-        for(State state: states){
-            String currentStateName = state.getName();
-            if(results.get(currentStateName).size() == 0)
-                results.get(currentStateName).add(new Transition(bddService.getOne(), 1, bddService));
+        for(int i=0; i<size(); i++){
+            if(rowSize[i] == 0)
+                setApplicationConditionTrue(i);
             else
-                results.get(currentStateName).clear();
-
+                clearRow(i);
         }
         return this;
     }
@@ -94,9 +269,40 @@ public class ResultSet {
      * @return Resultset
      */
     public ResultSet and(ResultSet b){
-        for(State state: states){
-            if(! (results.get(state.getName()).size() == 1 && b.results.get(state.getName()).size() == 1) )
-                results.get(state.getName()).clear();
+        for(int i=0; i<size(); i++){
+            if(! (rowSize[i] == 1 && b.rowSize[i] == 1) )
+                clearRow(i);
+        }
+        return this;
+    }
+
+    /**
+     * Sat(P~p[T]) from Sat(T): a state keeps one w/1 entry, w being the products in which its probability satisfies
+     * the bound: the conditions of its entries whose probability does, and the valid products no entry covers, that
+     * have probability 0, if 0 does. States where no product does get an empty row. <br>
+     * The bound is applied to the finished Sat(T), the rows engine does not use it to stop iterating.
+     * @param bound Formula, P~p[T] node
+     * @return this
+     */
+    public ResultSet bound(Formula bound){
+        boolean zero = bound.accepts(0);
+        int one = bddService.intern(bddService.getOne());
+        for(int i = 0; i < size(); i++){
+            BDD accepted = bddService.getZero();
+            BDD covered = bddService.getZero();
+            for(int j = rowStart[i]; j < rowStart[i] + rowSize[i]; j++){
+                BDD condition = bddService.getCondition(conditionPool[j]);
+                if(bound.accepts(probabilityPool[j]))
+                    accepted = bddService.or(accepted, condition);
+                if(zero)
+                    covered = bddService.or(covered, condition);
+            }
+            if(zero)
+                accepted = bddService.or(accepted, bddService.and(bddService.not(covered), bddService.getFeatureModel()));
+            if(accepted.isZero())
+                clearRow(i);
+            else
+                setRow(i, new int[]{accepted.isOne() ? one : bddService.intern(accepted)}, new double[]{1}, 1);
         }
         return this;
     }
@@ -105,32 +311,64 @@ public class ResultSet {
      * print the resultset
      */
     public void print(){
-        for (State state: states) {
-            System.out.println(state.getName());
-            for(Transition transition : results.get(state.getName())){
-                System.out.println("\t" + transition);
+        try {
+            write(System.out);
+        }catch(IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Write the resultset as print does: the name of every state, then a tab indented line per transition.
+     * Conditions are written with their shared subterms (see BDDService.writeShared), the definitions of a condition
+     * on tab indented lines before it, so a deep condition is written in the size of its bdd.
+     * @param out Appendable
+     * @throws IOException from out
+     */
+    public void write(Appendable out) throws IOException {
+        for(int i = 0; i < size(); i++){
+            out.append(states.get(i).getName()).append('\n');
+            for(int j = rowStart[i]; j < rowStart[i] + rowSize[i]; j++){
+                out.append('\t').append(bddService.toSharedString(bddService.getCondition(conditionPool[j])).replace("\n", "\n\t"));
+                out.append('/').append(String.valueOf(probabilityPool[j])).append('\n');
             }
         }
     }
     public boolean contains(String state){
-        ArrayList<String> keys = new ArrayList(results.keySet());
-        for (String key : keys) {
-            if(key.equals(state))
-                return true;
-        }
-        return false;
+        return stateTable.indexOf(state) != -1;
     }
 
+    /**
+     * @param state String, name of state
+     * @return new list of the Transitions of the row of the state, null for an unknown state
+     */
     public ArrayList<Transition> get(String state){
-        return results.get(state);
+        int index = stateTable.indexOf(state);
+        if(index == -1)
+            return null;
+        return get(index);
+    }
+
+    /**
+     * @param index int, index of state in the model
+     * @return new list of the Transitions of the row of the state, changing it does not change the result set.
+     * Their conditions stay valid until BDDService.gc is called after the result set became unreachable.
+     */
+    public ArrayList<Transition> get(int index){
+        int size = rowSize[index];
+        ArrayList<Transition> result = new ArrayList<Transition>(size);
+        for(int i = rowStart[index]; i < rowStart[index] + size; i++)
+            result.add(new Transition(bddService.getCondition(conditionPool[i]), probabilityPool[i], bddService));
+        return result;
     }
 
     /**
      * return states and transitions that the input condition satisfies in string format.
      * <i> e.g. { (u/0.0), (u and (not b)/0.8) } </i>
-     * @param condition any string with ">" or "=" or "<"
+     * @param condition comparison, one of "<", "<=", ">", ">=" and "="
      * @param p double
      * @return string of result
+     * @see #bound(Formula) for the bound as a result set
      */
     public String getProbability(String condition, double p){
 
@@ -138,22 +376,26 @@ public class ResultSet {
             System.out.println("Probability Should be between 0 and 1!");
             return "";
         }
-        String result = "{ ";
-        for(String name : results.keySet()){
-            ArrayList<Transition> currentTransition = results.get(name);
-            if(currentTransition.size() > 0){
-                for(Transition t : currentTransition){
-                    if(condition.contains("<") && t.getProbability() < p)
-                        result += "(" + name + "," + t  + ") ";
-                    if(condition.contains(">") && t.getProbability() > p)
-                        result += "(" + name + "," + t  + ") ";
-                    if(condition.contains("=") && t.getProbability() == p)
-                        result += "(" + name + "," + t  + ") ";
+        String comparison = condition.trim();
+        try {
+            Formula.compare(comparison, 0, p);
+        }catch(IllegalArgumentException e){
+            System.out.println(e.getMessage());
+            return "";
+        }
+        StringBuilder result = new StringBuilder("{ ");
+        for(int i=0; i<size(); i++){
+            String name = states.get(i).getName();
+            for(int j = rowStart[i]; j < rowStart[i] + rowSize[i]; j++){
+                if(Formula.compare(comparison, probabilityPool[j], p)){
+                    result.append('(').append(name).append(',')
+                            .append(bddService.toString(bddService.getCondition(conditionPool[j])))
+                            .append('/').append(probabilityPool[j]).append(") ");
                 }
             }
         }
-        result += "}";
-        return result;
+        result.append('}');
+        return result.toString();
     }
 
     /**
@@ -162,11 +404,74 @@ public class ResultSet {
      * @return this
      */
     public ResultSet removeZeros(){
-        for(String name: results.keySet()){
-            ArrayList<Transition> currentTransitions = results.get(name);
-            if(Transition.areAllZero(currentTransitions))
-                results.get(name).clear();
+        for(int i = 0; i < size(); i++){
+            boolean allZero = true;
+            for(int j = rowStart[i]; j < rowStart[i] + rowSize[i] && allZero; j++)
+                allZero = probabilityPool[j] == 0;
+            if(allZero)
+                clearRow(i);
         }
         return this;
     }
+
+    private void clearRow(int index){
+        garbage += rowSize[index];
+        rowSize[index] = 0;
+    }
+
+    /**
+     * Make room for size entries in the row of index, keeping the entries it has. A row that does not fit in place
+     * moves to the end of the pools.
+     */
+    private void reserve(int index, int size){
+        int old = rowSize[index];
+        if(size <= old || rowStart[index] + old == poolSize){
+            if(size > old && poolSize + size - old > conditionPool.length)
+                grow(poolSize + size - old);
+            if(rowStart[index] + old == poolSize)
+                poolSize = rowStart[index] + size;
+            else
+                garbage += old - size;
+            return;
+        }
+        if(garbage > poolSize / 2)
+            compact();
+        if(poolSize + size > conditionPool.length)
+            grow(poolSize + size);
+        System.arraycopy(conditionPool, rowStart[index], conditionPool, poolSize, old);
+        System.arraycopy(probabilityPool, rowStart[index], probabilityPool, poolSize, old);
+        garbage += old;
+        rowStart[index] = poolSize;
+        poolSize += size;
+    }
+
+    private void grow(int capacity){
+        int length = Math.max(capacity, conditionPool.length * 2);
+        conditionPool = Arrays.copyOf(conditionPool, length);
+        probabilityPool = Arrays.copyOf(probabilityPool, length);
+    }
+
+    private void compact(){
+        int[] conditions = new int[conditionPool.length];
+        double[] probabilities = new double[probabilityPool.length];
+        poolSize = copyRows(conditions, probabilities, rowStart);
+        conditionPool = conditions;
+        probabilityPool = probabilities;
+        garbage = 0;
+    }
+
+    /**
+     * Copy the rows next to each other into the given pools, starts receives the new row starts.
+     * @return number of entries copied
+     */
+    private int copyRows(int[] conditions, double[] probabilities, int[] starts){
+        int next = 0;
+        for(int i = 0; i < rowSize.length; i++){
+            System.arraycopy(conditionPool, rowStart[i], conditions, next, rowSize[i]);
+            System.arraycopy(probabilityPool, rowStart[i], probabilities, next, rowSize[i]);
+            starts[i] = next;
+            next += rowSize[i];
+        }
+        return next;
+    }
 }
@@ -1,7 +1,5 @@
-
 package dadfarnia.ir.MDPF;
 import java.util.ArrayList;
-import java.util.HashMap;
 
 /**
  * represent state in an MDPF
@@ -13,20 +11,26 @@ public class State {
     private String name;
 
     /**
-     * Every Transition is labeled by an action. Transitions are grouped by actions.
-     * <Action, <destination, Transition[]>>
+     * Index of State in the state table of the model, which is also its row in the transition matrix.
+     */
+    private int index;
+
+    /**
+     * Transitions of the whole model. Transitions of this state are the rows of the matrix with this index as source,
+     * one row per action.
      */
-    HashMap <String, HashMap<String,ArrayList<Transition>>> transitions; //<Action, <destination, Transition[]>>
-    String[] states_names;
+    private TransitionMatrix matrix;
 
     /**
      * Constructor
-      * @param name, states_names
+     * @param name String
+     * @param index int, index of state in the model
+     * @param matrix TransitionMatrix of the model
      */
-    State(String name, String[] states_names){
+    State(String name, int index, TransitionMatrix matrix){
         this.name = name;
-        this.states_names = states_names;
-        transitions = new HashMap<String, HashMap<String,ArrayList<Transition>>>();
+        this.index = index;
+        this.matrix = matrix;
     }
 
     /**
@@ -36,19 +40,40 @@ public class State {
      * @param destination String, name of destination state
      */
     public void addTransition(String action, Transition t, String destination){
-        if(transitions.containsKey(action)){
-            transitions.get(action).get(destination).add(t);
-        }
-        else {
-            HashMap<String, ArrayList<Transition>> outGoingTrans = new HashMap<String, ArrayList<Transition>>();
-            for(int i=0; i<states_names.length; i++) {
-                ArrayList<Transition> transitionArray = new ArrayList<Transition>();
-                if(states_names[i].equals(destination))
-                    transitionArray.add(t);
-                outGoingTrans.put(states_names[i], transitionArray);
-            }
-            transitions.put(action, outGoingTrans);
-        }
+        int dest = matrix.states.indexOf(destination);
+        if(dest == -1)
+            return;
+        int conditionId = matrix.bddService.intern(t.getApplicationCondition());
+        matrix.addTransition(index, matrix.actions.intern(action), dest, conditionId, t.getProbability());
+    }
+
+    /**
+     * Remove the transitions of an action to a destination.
+     * @param action String, name of action
+     * @param destination String, name of destination state, null for every destination
+     * @return int, number of removed transitions
+     */
+    public int removeTransition(String action, String destination){
+        int dest = destination == null ? -1 : matrix.states.indexOf(destination);
+        int act = matrix.actions.indexOf(action);
+        if(act == -1 || (destination != null && dest == -1))
+            return 0;
+        return matrix.removeTransitions(index, act, dest);
+    }
+
+    /**
+     * Change the probability of the transitions of an action to a destination.
+     * @param action String, name of action
+     * @param destination String, name of destination state, null for every destination
+     * @param probability double
+     * @return int, number of changed transitions
+     */
+    public int setProbability(String action, String destination, double probability){
+        int dest = destination == null ? -1 : matrix.states.indexOf(destination);
+        int act = matrix.actions.indexOf(action);
+        if(act == -1 || (destination != null && dest == -1))
+            return 0;
+        return matrix.setProbability(index, act, dest, probability);
     }
 
     /**
@@ -57,7 +82,7 @@ public class State {
      * @return boolean
      */
     public boolean hasAction(String label){
-        return transitions.containsKey(label);
+        return matrix.hasAction(index, matrix.actions.indexOf(label));
     }
 
     /**
@@ -69,23 +94,18 @@ public class State {
     }
 
     /**
-     * Print State
+     * get index of state
+     * @return int, index of state in the model
      */
-    public void print(){
-        for(String action : transitions.keySet()){
-            System.out.println(action);
-            print(transitions.get(action));
-            System.out.println("-----------");
-        }
+    public int getIndex(){
+        return index;
     }
 
-    private void print(HashMap<String, ArrayList<Transition>> outGoingTrans){
-        for(String destination: states_names) {
-            System.out.println("  " + destination);
-            for(int i=0; i<outGoingTrans.get(destination).size(); i++)
-                System.out.println("\t" + outGoingTrans.get(destination).get(i));
-
-        }
+    /**
+     * Print State
+     */
+    public void print(){
+        matrix.print(index);
     }
 
     /**
@@ -94,19 +114,7 @@ public class State {
      * @return ArrayList of Transitions
      */
     public ArrayList<Transition> multiply(ResultSet input){
-        ArrayList<ArrayList<Transition>> results = new ArrayList<ArrayList<Transition>>();
-        for(String action : transitions.keySet()){
-            ArrayList<Transition> partialResult = new ArrayList<Transition>();
-            for(String state : states_names){
-                ArrayList<Transition> arg1  = transitions.get(action).get(state);
-                ArrayList<Transition> arg2  = input.get(state);
-                partialResult = Transition.sum(partialResult, Transition.product(arg1, arg2, input.bddService));
-            }
-            results.add(partialResult);
-            if(results.size() > 1)
-                Transition.minimize(results);
-        }
-        return results.get(0);
+        return matrix.multiplyRow(index, input, matrix.workspace(input));
     }
 
 }
@@ -0,0 +1,65 @@
+package dadfarnia.ir.MDPF;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Interns names (states, actions) to consecutive integer indices, so the model can be stored in plain arrays.
+ */
+public class SymbolTable {
+    /**
+     * name -> index
+     */
+    private HashMap<String, Integer> indices;
+    /**
+     * index -> name
+     */
+    private ArrayList<String> names;
+
+    /**
+     * Constructor of an empty table
+     */
+    public SymbolTable(){
+        indices = new HashMap<String, Integer>();
+        names = new ArrayList<String>();
+    }
+
+    /**
+     * Return index of the name, adding it to the table if not seen before.
+     * @param name String
+     * @return int, index of name
+     */
+    public int intern(String name){
+        Integer index = indices.get(name);
+        if(index != null)
+            return index;
+        indices.put(name, names.size());
+        names.add(name);
+        return names.size() - 1;
+    }
+
+    /**
+     * @param name String
+     * @return int, index of name or -1 if name is not in the table
+     */
+    public int indexOf(String name){
+        Integer index = indices.get(name);
+        if(index == null)
+            return -1;
+        return index;
+    }
+
+    /**
+     * @param index int
+     * @return String, name stored at index
+     */
+    public String getName(int index){
+        return names.get(index);
+    }
+
+    /**
+     * @return number of names in the table
+     */
+    public int size(){
+        return names.size();
+    }
+}
@@ -0,0 +1,467 @@
+package dadfarnia.ir.MDPF;
+
+import net.sf.javabdd.BDD;
+import org.json.simple.parser.ParseException;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Evaluates formulas on one ADD over the whole state space instead of a diagram per state. <br>
+ * States and actions are encoded in binary with ADD variables past the propositions: a row (source) and a column
+ * (destination) bit per state bit, interleaved, then the action bits. The transition relation is the ADD
+ * T(action, source, destination, products) of the summed probabilities of the transitions whose condition holds,
+ * and E(action, source, products) tells which actions are enabled. Next is the image
+ * min over enabled actions of (sum over destinations of T * V), until iterates it, so every operation works on all
+ * states at once. Values are those of ADDModelChecker; until does Jacobi iterations. <br>
+ * The encoding is built from the TransitionMatrix of an MDPF, and again after the matrix changes, or by read
+ * straight from the transitions of a json model as they are streamed, with no matrix and no State objects.
+ * Results stay symbolic, see SymbolicResultSet, rows of states are made only when asked for.
+ * @see ADDModelChecker
+ */
+public class SymbolicModelChecker {
+    /**
+     * States of the MDPF, null for a model read by read.
+     */
+    private ArrayList<State> states;
+    private SymbolTable stateTable;
+    private SymbolTable actions;
+    /**
+     * TransitionMatrix of the MDPF, null for a model read by read.
+     */
+    private TransitionMatrix matrix;
+    private BDDService bddService;
+    private ADD add;
+    /**
+     * False once an unbounded until stopped after maxIterations without converging, reset by MDPF per query.
+     * @see MDPF#isConverged()
+     */
+    boolean converged = true;
+
+    /**
+     * modCount of matrix the encoding was built for, -1 before it is built.
+     */
+    private int version = -1;
+    private int[] actionVars;
+    private int[] rowVars;
+    private int[] columnVars;
+    /**
+     * Renaming of row variables to column variables.
+     */
+    private int[] rowToColumn;
+
+    /**
+     * T(action, source, destination, products), sum of the probabilities of the transitions.
+     */
+    private int transitions;
+    /**
+     * E(action, source, products), 1 where some transition of the action has a condition that holds.
+     */
+    private int enabled;
+    /**
+     * A(action, source), 1 where the state has a transition labeled by the action.
+     */
+    private int labels;
+    /**
+     * 1 on the codes of states, 0 on unused codes.
+     */
+    private int valid;
+
+    /**
+     * T, E and A of the transitions of each action while the encoding is built, the number of action bits is
+     * known once every transition is read.
+     */
+    private ArrayList<int[]> perAction;
+    /**
+     * ADD of each condition id while the encoding is built.
+     */
+    private HashMap<Integer, Integer> conditions;
+    /**
+     * Results of the current manager, their values are kept and renumbered when the manager is collected.
+     */
+    private ArrayList<WeakReference<SymbolicResultSet>> results = new ArrayList<WeakReference<SymbolicResultSet>>();
+
+    /**
+     * @param states ArrayList of States of the model
+     * @param stateTable SymbolTable of state names
+     * @param matrix TransitionMatrix of the model
+     * @param bddService BDDService of the model
+     */
+    public SymbolicModelChecker(ArrayList<State> states, SymbolTable stateTable, TransitionMatrix matrix, BDDService bddService){
+        this.states = states;
+        this.stateTable = stateTable;
+        this.actions = matrix.actions;
+        this.matrix = matrix;
+        this.bddService = bddService;
+    }
+
+    private SymbolicModelChecker(){
+    }
+
+    /**
+     * Encode a json model (format of MDPF) while JsonModelReader streams it: every transition goes into the ADDs as
+     * soon as it is read and is not kept. Only state and action names are held besides the ADDs.
+     * @param fileName String, json model
+     * @return SymbolicModelChecker
+     * @throws IOException if the file can not be read or has no "Propositions" or "States"
+     * @throws ParseException if the file is not json
+     */
+    public static SymbolicModelChecker read(String fileName) throws IOException, ParseException {
+        SymbolicModelChecker result = new SymbolicModelChecker();
+        String featureModel;
+        BufferedReader reader = new BufferedReader(new FileReader(fileName));
+        try {
+            JsonModelReader modelReader = new JsonModelReader(reader);
+            ArrayList<String[]> early = new ArrayList<String[]>();
+            while(modelReader.next()){
+                if(result.add == null && modelReader.getPropositions() != null && modelReader.getStates() != null)
+                    result.readHeader(modelReader, early);
+                String[] transition = {modelReader.getSource(), modelReader.getDestination(), modelReader.getLabel(),
+                        Double.toString(modelReader.getProbability()), modelReader.getApplicationCondition()};
+                if(result.add == null)
+                    early.add(transition);
+                else
+                    result.addTransition(transition);
+            }
+            if(result.add == null && modelReader.getPropositions() != null && modelReader.getStates() != null)
+                result.readHeader(modelReader, early);
+            featureModel = modelReader.getFeatureModel();
+        }finally{
+            reader.close();
+        }
+        if(result.add == null)
+            throw new IOException("Propositions or States missing in " + fileName);
+        result.finish(featureModel == null ? null : result.bddService.conditionToBDD(featureModel));
+        return result;
+    }
+
+    /**
+     * @param formula Formula
+     * @param epsilon double, convergence threshold of unbounded until
+     * @param maxIterations int, iteration cap of unbounded until
+     * @return ResultSet, nonzero regions per state
+     * @throws IllegalStateException for a model read by read, it has no State objects
+     */
+    public ResultSet sat(Formula formula, double epsilon, int maxIterations){
+        if(states == null)
+            throw new IllegalStateException("No states of an MDPF, use satSymbolic");
+        SymbolicResultSet values = satSymbolic(formula, epsilon, maxIterations);
+        ResultSet result = new ResultSet(states, stateTable, bddService);
+        for(State state : states)
+            result.set(state, values.get(state.getIndex()));
+        return result;
+    }
+
+    /**
+     * A model read by read has no MDPF queries, its manager is collected (see endQuery) before each call instead:
+     * the ids returned by evaluate before are invalid then.
+     * @param formula Formula
+     * @param epsilon double, convergence threshold of unbounded until
+     * @param maxIterations int, iteration cap of unbounded until
+     * @return SymbolicResultSet, the values of all states in one ADD
+     */
+    public SymbolicResultSet satSymbolic(Formula formula, double epsilon, int maxIterations){
+        if(matrix == null)
+            endQuery();
+        int values = evaluate(formula, epsilon, maxIterations);    // builds the encoding first
+        SymbolicResultSet result = new SymbolicResultSet(add, values, rowVars, stateTable, bddService);
+        results.add(new WeakReference<SymbolicResultSet>(result));
+        return result;
+    }
+
+    /**
+     * @return ADD manager of the values
+     */
+    public ADD getADD(){
+        build();
+        return add;
+    }
+
+    /**
+     * @return BDDService of the propositions
+     */
+    public BDDService getBDDService(){
+        return bddService;
+    }
+
+    /**
+     * @return number of states of the model
+     */
+    public int size(){
+        return stateTable.size();
+    }
+
+    /**
+     * Drop the ADD nodes of the queries so far once the manager grew enough, only the encoding and the values of
+     * reachable SymbolicResultSets are kept. Called by MDPF when the outermost query ends, ids of other values of
+     * earlier queries are invalid then.
+     * @see ADD#collectIfGrown(int[]...)
+     */
+    void endQuery(){
+        if(add == null)
+            return;
+        ArrayList<SymbolicResultSet> live = new ArrayList<SymbolicResultSet>();
+        for(Iterator<WeakReference<SymbolicResultSet>> i = results.iterator(); i.hasNext();){
+            SymbolicResultSet result = i.next().get();
+            if(result == null)
+                i.remove();
+            else
+                live.add(result);
+        }
+        int[] roots = {transitions, enabled, labels, valid};
+        int[] values = new int[live.size()];
+        for(int i = 0; i < values.length; i++)
+            values[i] = live.get(i).values;
+        add.collectIfGrown(roots, values);
+        transitions = roots[0];
+        enabled = roots[1];
+        labels = roots[2];
+        valid = roots[3];
+        for(int i = 0; i < values.length; i++)
+            live.get(i).values = values[i];
+    }
+
+    /**
+     * @return int, ADD of formula over the row variables and the propositions
+     */
+    public int evaluate(Formula formula, double epsilon, int maxIterations){
+        build();
+        switch(formula.getOperator()){
+            case Formula.PROPOSITION: {
+                if(formula.getName().equals("True"))
+                    return valid;
+                int action = actions.indexOf(formula.getName());
+                if(action == -1)
+                    return add.getZero();
+                int labeled = add.apply(ADD.TIMES, labels, add.cube(actionVars, bits(action, actionVars.length)));
+                return add.abstractVariables(ADD.MAX, labeled, actionVars);
+            }
+            case Formula.NOT:
+                return add.apply(ADD.TIMES, valid, add.not(evaluate(formula.getLeft(), epsilon, maxIterations)));
+            case Formula.AND:
+            case Formula.OR: {
+                int first = add.nonZero(evaluate(formula.getLeft(), epsilon, maxIterations));
+                int second = add.nonZero(evaluate(formula.getRight(), epsilon, maxIterations));
+                return add.apply(formula.getOperator() == Formula.AND ? ADD.MIN : ADD.MAX, first, second);
+            }
+            case Formula.NEXT:
+                return image(evaluate(formula.getLeft(), epsilon, maxIterations));
+            case Formula.UNTIL:
+            case Formula.EVENTUALLY: {
+                int arg1;
+                int arg2;
+                if(formula.getOperator() == Formula.EVENTUALLY){
+                    arg1 = valid;
+                    arg2 = evaluate(formula.getLeft(), epsilon, maxIterations);
+                }
+                else{
+                    arg1 = evaluate(formula.getLeft(), epsilon, maxIterations);
+                    arg2 = evaluate(formula.getRight(), epsilon, maxIterations);
+                }
+                return until(arg1, arg2, formula.getBound(), epsilon, maxIterations);
+            }
+            case Formula.PROBABILITY:
+                return add.apply(ADD.TIMES, valid, add.threshold(evaluate(formula.getLeft(), epsilon, maxIterations), formula));
+            default:
+                throw new IllegalArgumentException("Unknown operator " + formula.getOperator());
+        }
+    }
+
+    /**
+     * Value of next: for every state and product, the minimum over the enabled actions of the sum over the
+     * destinations of T * input, 0 where no action is enabled.
+     * @param input int, ADD over the row variables and the propositions
+     * @return int, ADD over the row variables and the propositions
+     */
+    private int image(int input){
+        int destinations = add.rename(input, rowToColumn);
+        int sums = add.abstractVariables(ADD.PLUS, add.apply(ADD.TIMES, transitions, destinations), columnVars);
+        int masked = add.apply(ADD.MASK, sums, enabled);
+        return add.finite(add.abstractVariables(ADD.MIN, masked, actionVars));
+    }
+
+    /**
+     * Sat(T1 U T2): value of T2 where T2 holds, the image of the previous values where only T1 holds, 0 elsewhere.
+     * With bound -1 iterates until no value changes more than epsilon, otherwise for bound steps; both stop once an
+     * iteration leaves the diagram unchanged.
+     */
+    private int until(int arg1, int arg2, int bound, double epsilon, int maxIterations){
+        int go = add.apply(ADD.TIMES, add.nonZero(arg1), add.not(arg2));
+        int current = arg2;
+        int steps = bound == -1 ? maxIterations : bound;
+        boolean converged = go == add.getZero();
+        for(int i = 0; i < steps && !converged; i++){
+            int next = add.apply(ADD.PLUS, arg2, add.apply(ADD.TIMES, go, image(current)));
+            converged = next == current
+                    || (bound == -1 && add.maxValue(add.apply(ADD.DISTANCE, next, current)) <= epsilon);
+            current = next;
+        }
+        if(bound == -1 && !converged)
+            this.converged = false;
+        return current;
+    }
+
+    /**
+     * Encode the transitions of matrix, unless it did not change since the last time or the model was read by read.
+     */
+    private void build(){
+        if(matrix == null || version == matrix.modCount())
+            return;
+        matrix.size();
+        version = matrix.modCount();
+        start(states.size());
+        for(int s = 0; s < states.size(); s++){
+            for(int r = matrix.stateStart[s]; r < matrix.stateStart[s + 1]; r++){
+                for(int e = matrix.rowStart[r]; e < matrix.rowStart[r + 1]; e++)
+                    encode(s, matrix.rowAction[r], matrix.destination[e], matrix.probability[e], matrix.condition[e]);
+            }
+        }
+        finish(null);
+    }
+
+    private void readHeader(JsonModelReader modelReader, ArrayList<String[]> early){
+        bddService = new BDDService(modelReader.getPropositions().split("\\s+"));
+        stateTable = new SymbolTable();
+        actions = new SymbolTable();
+        for(String name : modelReader.getStates().split("\\s+")){
+            if(stateTable.indexOf(name) != -1)
+                System.out.println("State " + name + " declared twice");
+            else
+                stateTable.intern(name);
+        }
+        start(stateTable.size());
+        for(String[] transition : early)
+            addTransition(transition);
+        early.clear();
+    }
+
+    /**
+     * @param transition String[], source, destination, label, probability and condition
+     */
+    private void addTransition(String[] transition){
+        int source = stateTable.indexOf(transition[0]);
+        int destination = stateTable.indexOf(transition[1]);
+        if(source == -1 || destination == -1){
+            System.out.println("Transition " + transition[0] + " -> " + transition[1] + " ignored, state not declared");
+            return;
+        }
+        encode(source, actions.intern(transition[2]), destination, Double.parseDouble(transition[3]),
+                bddService.internCondition(transition[4]));
+    }
+
+    /**
+     * Start an encoding in a new manager: state variables, valid, and empty T, E and A per action.
+     */
+    private void start(int numberOfStates){
+        add = new ADD();
+        results.clear();    // results of the previous manager keep it
+        int propositions = bddService.propositions.size();
+        int stateBits = bitsFor(numberOfStates);
+        rowVars = new int[stateBits];
+        columnVars = new int[stateBits];
+        for(int i = 0; i < stateBits; i++){
+            rowVars[i] = propositions + 2 * i;
+            columnVars[i] = rowVars[i] + 1;
+        }
+        valid = below(numberOfStates);
+        perAction = new ArrayList<int[]>();
+        conditions = new HashMap<Integer, Integer>();
+    }
+
+    /**
+     * Add one transition to T, E and A of its action.
+     */
+    private void encode(int source, int action, int destination, double probability, int condition){
+        while(perAction.size() <= action)
+            perAction.add(new int[]{add.getZero(), add.getZero(), add.getZero()});
+        Integer c = conditions.get(condition);
+        if(c == null){
+            c = add.fromBDD(bddService.getCondition(condition), bddService);
+            conditions.put(condition, c);
+        }
+        int sourceCube = add.cube(rowVars, bits(source, rowVars.length));
+        int destinationCube = add.cube(columnVars, bits(destination, columnVars.length));
+        int weighted = add.apply(ADD.TIMES, add.constant(probability), c);
+        int[] encoded = perAction.get(action);
+        encoded[0] = add.apply(ADD.PLUS, encoded[0], add.apply(ADD.TIMES, sourceCube, add.apply(ADD.TIMES, destinationCube, weighted)));
+        encoded[1] = add.apply(ADD.MAX, encoded[1], add.apply(ADD.TIMES, sourceCube, c));
+        encoded[2] = add.apply(ADD.MAX, encoded[2], sourceCube);
+    }
+
+    /**
+     * Join T, E and A of the actions with the action bits, now that their number is known.
+     * @param featureModel BDD, products the model is restricted to, null for none
+     */
+    private void finish(BDD featureModel){
+        int propositions = bddService.propositions.size();
+        actionVars = new int[bitsFor(actions.size())];
+        for(int i = 0; i < actionVars.length; i++)
+            actionVars[i] = propositions + 2 * rowVars.length + i;
+        rowToColumn = new int[propositions + 2 * rowVars.length + actionVars.length];
+        for(int v = 0; v < rowToColumn.length; v++)
+            rowToColumn[v] = v;
+        for(int i = 0; i < rowVars.length; i++)
+            rowToColumn[rowVars[i]] = columnVars[i];
+        transitions = add.getZero();
+        enabled = add.getZero();
+        labels = add.getZero();
+        for(int a = 0; a < perAction.size(); a++){
+            int key = add.cube(actionVars, bits(a, actionVars.length));
+            int[] encoded = perAction.get(a);
+            transitions = add.apply(ADD.PLUS, transitions, add.apply(ADD.TIMES, key, encoded[0]));
+            enabled = add.apply(ADD.MAX, enabled, add.apply(ADD.TIMES, key, encoded[1]));
+            labels = add.apply(ADD.MAX, labels, add.apply(ADD.TIMES, key, encoded[2]));
+        }
+        perAction = null;
+        conditions = null;
+        if(featureModel != null){
+            // as TransitionMatrix.restrict: conditions are conjoined with it, actions left with none are dropped
+            bddService.setFeatureModel(featureModel);
+            int products = add.fromBDD(bddService.getFeatureModel(), bddService);
+            transitions = add.apply(ADD.TIMES, transitions, products);
+            enabled = add.apply(ADD.TIMES, enabled, products);
+            int[] propositionVars = new int[propositions];
+            for(int v = 0; v < propositions; v++)
+                propositionVars[v] = v;
+            labels = add.abstractVariables(ADD.MAX, enabled, propositionVars);
+        }
+    }
+
+    /**
+     * @return 1 on the codes of the row variables below count, 0 elsewhere, built from the last bit up
+     */
+    private int below(int count){
+        if(count >= 1 << rowVars.length)
+            return add.getOne();
+        int result = add.getZero();
+        for(int i = rowVars.length - 1; i >= 0; i--){
+            if(((count >> (rowVars.length - 1 - i)) & 1) == 1)
+                result = add.node(rowVars[i], add.getOne(), result);
+            else
+                result = add.node(rowVars[i], result, add.getZero());
+        }
+        return result;
+    }
+
+    private static int bitsFor(int count){
+        int bits = 1;
+        while((1 << bits) < count)
+            bits++;
+        return bits;
+    }
+
+    /**
+     * @return binary code of value, most significant bit first
+     */
+    static boolean[] bits(int value, int count){
+        boolean[] result = new boolean[count];
+        for(int i = 0; i < count; i++)
+            result[i] = ((value >> (count - 1 - i)) & 1) == 1;
+        return result;
+    }
+}
@@ -0,0 +1,68 @@
+package dadfarnia.ir.MDPF;
+
+import java.util.ArrayList;
+
+/**
+ * Result of a formula on SymbolicModelChecker: one ADD over the row (state) variables and the propositions, the
+ * value for every state and product at once. The row of a state is made from the ADD when it is asked for.
+ * @see SymbolicModelChecker#satSymbolic(Formula, double, int)
+ */
+public class SymbolicResultSet {
+    private ADD add;
+    /**
+     * ADD of the values, renumbered by the checker when it collects the nodes of its manager.
+     */
+    int values;
+    private int[] rowVars;
+    private SymbolTable stateTable;
+    private BDDService bddService;
+
+    SymbolicResultSet(ADD add, int values, int[] rowVars, SymbolTable stateTable, BDDService bddService){
+        this.add = add;
+        this.values = values;
+        this.rowVars = rowVars;
+        this.stateTable = stateTable;
+        this.bddService = bddService;
+    }
+
+    /**
+     * @return ADD manager of the values
+     */
+    public ADD getADD(){
+        return add;
+    }
+
+    /**
+     * @return int, ADD of the values, valid until the checker collects the nodes of its manager
+     */
+    public int getValues(){
+        return values;
+    }
+
+    /**
+     * @return number of states of the model
+     */
+    public int size(){
+        return stateTable.size();
+    }
+
+    /**
+     * @param state String, name of state
+     * @return new list of the Transitions of the row of the state, null for an unknown state
+     */
+    public ArrayList<Transition> get(String state){
+        int index = stateTable.indexOf(state);
+        if(index == -1)
+            return null;
+        return get(index);
+    }
+
+    /**
+     * @param index int, index of state in the model
+     * @return new list of the Transitions of the row of the state, a w/p transition per nonzero value p
+     */
+    public ArrayList<Transition> get(int index){
+        int row = add.cofactor(values, rowVars, SymbolicModelChecker.bits(index, rowVars.length));
+        return add.toTransitions(row, bddService);
+    }
+}
@@ -1,16 +1,21 @@
 package dadfarnia.ir.MDPF;
 import net.sf.javabdd.BDD;
-import net.sf.javabdd.BDDFactory;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.TreeMap;
 /**
- * Represent a transition with probability, application condition.
+ * Represent a transition with probability, application condition. Transitions are immutable, so result sets can share them.
  */
 public class Transition {
 
-    private double probability;
-    private BDD applicationCondition;
-    private BDDService bddService;
+    private final double probability;
+    private final BDD applicationCondition;
+    private final BDDService bddService;
 
     /**
      * Transition Constructor
@@ -25,39 +30,112 @@ public class Transition {
     }
 
     /**
-     * Minimize a columnar matrix, as min function defined in page 7 of article
-     * @param input Arraylist of Arraylists of Transitions
+     * Minimize a columnar matrix, as min function defined in page 7 of article: an entry is removed when it is weaker
+     * than an entry of another column, i.e. that entry's condition covers its condition with at most its probability.
+     * All columns are minimized at once and merged into one list, in column order.<br>
+     * Entries are visited in increasing probability, larger conditions first on ties, so an entry can only be removed
+     * by an entry visited before it. Equal entries of different columns are weaker than one another: of those that no
+     * stronger entry removes, the one of the first column is kept. So the entries kept do not depend on the order
+     * of the columns, only their order in the list does. <br>
+     * Visited entries are indexed by condition and by number of satisfying products: an entry is compared with the
+     * entries of the same condition, found by a lookup, and with the entries satisfied by strictly more products,
+     * the only others that can cover its condition. Rows with few distinct conditions take a near linear pass,
+     * the worst case, conditions that cover one another in no order, still takes a weaker-than check per pair.
+     * @param input Arraylist of Arraylists of Transitions, one per column
      */
     public static void minimize(ArrayList<ArrayList<Transition>> input){
-        if(input.size() != 2)
+        if(input.size() < 2)
             return;
+        int size = 0;
+        for(ArrayList<Transition> column : input)
+            size += column.size();
+        final Transition[] entries = new Transition[size];
+        final int[] columns = new int[size];
+        final double[] counts = new double[size];
+        Integer[] order = new Integer[size];
+        int k = 0;
+        for(int c = 0; c < input.size(); c++){
+            for(Transition t : input.get(c)){
+                entries[k] = t;
+                columns[k] = c;
+                counts[k] = t.bddService.satCount(t.applicationCondition);
+                order[k] = k;
+                k++;
+            }
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                int result = Double.compare(entries[a].probability, entries[b].probability);
+                if(result == 0)
+                    result = Double.compare(counts[b], counts[a]);
+                if(result == 0)
+                    result = columns[a] - columns[b];
+                return result;
+            }
+        });
 
-        ArrayList<Transition> transitions1 = input.get(0);
-        ArrayList<Transition> transitions2 = input.get(1);
-        for(int i=0; i<transitions1.size(); i++){
-            for(int j=0; j<transitions2.size(); j++){
-                Transition t1 = transitions1.get(i);
-                Transition t2 = transitions2.get(j);
-                if(t2.isWeaker(t1)) {
-                    transitions2.remove(t2);
-                    j--;
-                }
-                else if(t1.isWeaker(t2)) {
-                    transitions1.remove(t1);
-                    i--;
+        boolean[] removed = new boolean[size];
+        HashMap<BDD, ArrayList<Integer>> byCondition = new HashMap<BDD, ArrayList<Integer>>();
+        TreeMap<Double, ArrayList<Integer>> byCount = new TreeMap<Double, ArrayList<Integer>>();
+        for(int i = 0; i < size; i++){
+            int t = order[i];
+            ArrayList<Integer> same = byCondition.get(entries[t].applicationCondition);
+            if(same == null){
+                same = new ArrayList<Integer>();
+                byCondition.put(entries[t].applicationCondition, same);
+            }
+            for(int u : same){
+                if(columns[u] != columns[t] && (entries[u].probability < entries[t].probability || !removed[u])){
+                    removed[t] = true;
+                    break;
                 }
             }
+            if(!removed[t])
+                removed[t] = dominated(t, entries, columns, byCount.tailMap(counts[t], false).values());
+            same.add(t);
+            ArrayList<Integer> bucket = byCount.get(counts[t]);
+            if(bucket == null){
+                bucket = new ArrayList<Integer>();
+                byCount.put(counts[t], bucket);
+            }
+            bucket.add(t);
         }
 
-        transitions1.addAll(transitions2);
-        input.remove(transitions2);
+        ArrayList<Transition> result = new ArrayList<Transition>();
+        for(int i = 0; i < size; i++){
+            if(!removed[i])
+                result.add(entries[i]);
+        }
+        input.clear();
+        input.add(result);
+    }
+
+    /**
+     * Check entry t is weaker than an entry of another column among candidates.
+     */
+    private static boolean dominated(int t, Transition[] entries, int[] columns, Collection<ArrayList<Integer>> candidates){
+        for(ArrayList<Integer> bucket : candidates){
+            for(int u : bucket){
+                if(columns[u] != columns[t] && entries[t].isWeaker(entries[u]))
+                    return true;
+            }
+        }
+        return false;
     }
 
 
     public String toString(){
-        String result = "";
-        result += (bddService.toString(applicationCondition) + "/" + probability);
-        return result;
+        return bddService.toString(applicationCondition) + "/" + probability;
+    }
+
+    /**
+     * Write the transition as toString does.
+     * @param out Appendable
+     * @throws IOException from out
+     */
+    public void write(Appendable out) throws IOException {
+        bddService.write(applicationCondition, out);
+        out.append('/').append(String.valueOf(probability));
     }
 
     /**
@@ -79,7 +157,6 @@ public class Transition {
         }
         else if(t2.size() == 0){
             for(Transition t: t1){
-                bddService.satDFS(t.applicationCondition);
                 if(!t.applicationCondition.equals(bddService.getOne()))
                     result.add(new Transition(t.applicationCondition, 0, bddService));
             }
@@ -87,7 +164,7 @@ public class Transition {
         else{
             for(Transition ti : t1){
                 for(Transition tj : t2){
-                    BDD bddProduct = ti.applicationCondition.apply(tj.applicationCondition, BDDFactory.and);
+                    BDD bddProduct = bddService.and(ti.applicationCondition, tj.applicationCondition);
                     result.add(new Transition(bddProduct, ti.probability*tj.probability, bddService));
                 }
             }
@@ -104,38 +181,36 @@ public class Transition {
      *      o.w:                   r U w/p
      * @param r
      * @param transition
-     * @return arraylist of transitions
+     * @return new arraylist of transitions, r and its transitions are not changed
      */
     public static ArrayList<Transition> sum(ArrayList<Transition> r, Transition transition){
-        ArrayList<Transition> result = new ArrayList<Transition>();
-        result.addAll(r);
-        boolean flag = false;
-        for(Transition t : result){
+        ArrayList<Transition> result = new ArrayList<Transition>(r);
+        for(int i=0; i<result.size(); i++){
+            Transition t = result.get(i);
             if(t.applicationCondition.equals(transition.applicationCondition)){
-                t.probability += transition.probability;
-                flag = true;
-                break;
+                result.set(i, new Transition(t.applicationCondition, t.probability + transition.probability, t.bddService));
+                return result;
             }
         }
-        if(!flag){
-            result.add(transition);
-        }
+        result.add(transition);
         return result;
     }
 
     /**
-     * Calculate result of sum of two arraylist of transitions
+     * Calculate result of sum of two arraylist of transitions, in linear time.
      * @param r1 ArrayList of Transitions
      * @param r2 ArrayList of Transitions
      * @return ArrayList of Transitions
+     * @see TransitionAccumulator
      */
     public static ArrayList<Transition> sum(ArrayList<Transition> r1, ArrayList<Transition> r2){
-        ArrayList<Transition> result = new ArrayList<Transition>();
-        result.addAll(r1);
-        for(Transition t : r2){
-            result = Transition.sum(result, t);
-        }
-        return result;
+        if(r1.size() + r2.size() == 0)
+            return new ArrayList<Transition>();
+        Transition first = r1.size() > 0 ? r1.get(0) : r2.get(0);
+        TransitionAccumulator accumulator = new TransitionAccumulator(first.bddService);
+        accumulator.addAll(r1);
+        accumulator.addAll(r2);
+        return accumulator.toList();
     }
 
     /**
@@ -149,6 +224,14 @@ public class Transition {
         return false;
     }
 
+    /**
+     * get application condition
+     * @return BDD
+     */
+    public BDD getApplicationCondition(){
+        return applicationCondition;
+    }
+
     /**
      * get probability
      * @return double
@@ -157,6 +240,40 @@ public class Transition {
         return probability;
     }
 
+    /**
+     * Check two arraylists of transitions hold the same (application condition, probability) pairs, in any order.
+     * @param r1 ArrayList of Transitions
+     * @param r2 ArrayList of Transitions
+     * @return boolean, true if both have the same pairs
+     */
+    public static boolean equals(ArrayList<Transition> r1, ArrayList<Transition> r2){
+        return equals(r1, r2, 0);
+    }
+
+    /**
+     * Check two arraylists of transitions hold the same application conditions, with probabilities at most epsilon apart.
+     * @param r1 ArrayList of Transitions
+     * @param r2 ArrayList of Transitions
+     * @param epsilon double, tolerance on probabilities
+     * @return boolean, true if both have the same pairs up to epsilon
+     */
+    public static boolean equals(ArrayList<Transition> r1, ArrayList<Transition> r2, double epsilon){
+        if(r1.size() != r2.size())
+            return false;
+        for(Transition t1 : r1){
+            boolean found = false;
+            for(Transition t2 : r2){
+                if(Math.abs(t1.probability - t2.probability) <= epsilon && t1.applicationCondition.equals(t2.applicationCondition)){
+                    found = true;
+                    break;
+                }
+            }
+            if(!found)
+                return false;
+        }
+        return true;
+    }
+
     /**
      * Check if all probabilities are zero
      * @param array ArrayList<Transitions>
@@ -0,0 +1,97 @@
+package dadfarnia.ir.MDPF;
+import net.sf.javabdd.BDD;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Sum of transitions, as sum defined in the article: entries with the same application condition add their
+ * probabilities. Entries are found by the bdd node of their condition in a hash index, so adding n transitions
+ * takes linear time. Entries keep the order in which their condition was first added.
+ */
+public class TransitionAccumulator {
+    private BDDService bddService;
+    /**
+     * condition -> position of its entry
+     */
+    private HashMap<BDD, Integer> positions;
+    private ArrayList<BDD> conditions;
+    private double[] probabilities;
+
+    /**
+     * Constructor of an empty sum
+     * @param bddService BDDService
+     */
+    public TransitionAccumulator(BDDService bddService){
+        this.bddService = bddService;
+        positions = new HashMap<BDD, Integer>();
+        conditions = new ArrayList<BDD>();
+        probabilities = new double[16];
+    }
+
+    /**
+     * Add w/p to the sum.
+     * @param condition BDD, w
+     * @param probability double, p
+     */
+    public void add(BDD condition, double probability){
+        Integer position = positions.get(condition);
+        if(position != null){
+            probabilities[position] += probability;
+            return;
+        }
+        if(conditions.size() == probabilities.length)
+            probabilities = Arrays.copyOf(probabilities, probabilities.length * 2);
+        positions.put(condition, conditions.size());
+        probabilities[conditions.size()] = probability;
+        conditions.add(condition);
+    }
+
+    /**
+     * @param transition Transition
+     */
+    public void add(Transition transition){
+        add(transition.getApplicationCondition(), transition.getProbability());
+    }
+
+    /**
+     * @param transitions ArrayList of Transitions
+     */
+    public void addAll(ArrayList<Transition> transitions){
+        for(Transition t : transitions)
+            add(t.getApplicationCondition(), t.getProbability());
+    }
+
+    /**
+     * @return number of distinct conditions in the sum
+     */
+    public int size(){
+        return conditions.size();
+    }
+
+    /**
+     * @return BDDService of the conditions
+     */
+    public BDDService getBDDService(){
+        return bddService;
+    }
+
+    /**
+     * Empty the sum, so it can be reused.
+     */
+    public void clear(){
+        positions.clear();
+        conditions.clear();
+    }
+
+    /**
+     * @return ArrayList of new Transitions, one per distinct condition
+     */
+    public ArrayList<Transition> toList(){
+        ArrayList<Transition> result = new ArrayList<Transition>(conditions.size());
+        for(int i = 0; i < conditions.size(); i++)
+            result.add(new Transition(conditions.get(i), probabilities[i], bddService));
+        return result;
+    }
+}
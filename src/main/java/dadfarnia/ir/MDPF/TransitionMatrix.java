@@ -0,0 +1,798 @@
+package dadfarnia.ir.MDPF;
+import net.sf.javabdd.BDD;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Transitions of an MDPF in compressed sparse row (CSR) form. <br>
+ * States, actions and application conditions are interned to ints. Every (state, action) pair that has outgoing
+ * transitions is one row. Rows of state s are stateStart[s] .. stateStart[s+1]-1, and entries of row r are
+ * rowStart[r] .. rowStart[r+1]-1, each entry being a (destination, condition id, probability) triple.
+ * Transitions are buffered while the model is loaded and packed on first use. Transitions added later are buffered
+ * too and merged into the rows of their sources on the next use.
+ */
+public class TransitionMatrix {
+    /**
+     * state name <-> state index
+     */
+    SymbolTable states;
+    /**
+     * action label <-> action index
+     */
+    SymbolTable actions;
+    /**
+     * Service holding the interned application conditions.
+     */
+    BDDService bddService;
+
+    private int pendingSize;
+    private int[] pendingSource;
+    private int[] pendingAction;
+    private int[] pendingDestination;
+    private int[] pendingCondition;
+    private double[] pendingProbability;
+
+    int[] stateStart;
+    int[] rowAction;
+    int[] rowStart;
+    int[] destination;
+    int[] condition;
+    double[] probability;
+
+    /**
+     * Predecessor index, built on demand: sources of state d are predecessorSource[predecessorStart[d] .. predecessorStart[d+1]-1],
+     * one per entry, predecessorLive tells whether the entry can be taken (nonzero probability, satisfiable condition).
+     */
+    private int[] predecessorStart;
+    private int[] predecessorSource;
+    private boolean[] predecessorLive;
+
+    /**
+     * Number of changes to the transitions, and the sources of the changes since trackEdits, in order (null while
+     * edits are not tracked).
+     */
+    private int modCount;
+    private int[] edits;
+    private int editCount;
+
+    /**
+     * Action index, built on demand: states with action a are actionState[actionStart[a] .. actionStart[a+1]-1].
+     */
+    private int[] actionStart;
+    private int[] actionState;
+
+    /**
+     * Constructor of an empty matrix
+     * @param states SymbolTable of state names
+     * @param actions SymbolTable of action labels
+     * @param bddService BDDService that interns application conditions
+     */
+    public TransitionMatrix(SymbolTable states, SymbolTable actions, BDDService bddService){
+        this.states = states;
+        this.actions = actions;
+        this.bddService = bddService;
+        pendingSource = new int[16];
+        pendingAction = new int[16];
+        pendingDestination = new int[16];
+        pendingCondition = new int[16];
+        pendingProbability = new double[16];
+    }
+
+    /**
+     * Constructor of an already packed matrix, used when a model snapshot is loaded.
+     * @see ModelSnapshot
+     */
+    TransitionMatrix(SymbolTable states, SymbolTable actions, BDDService bddService, int[] stateStart, int[] rowAction,
+                     int[] rowStart, int[] destination, int[] condition, double[] probability){
+        this.states = states;
+        this.actions = actions;
+        this.bddService = bddService;
+        this.stateStart = stateStart;
+        this.rowAction = rowAction;
+        this.rowStart = rowStart;
+        this.destination = destination;
+        this.condition = condition;
+        this.probability = probability;
+    }
+
+    /**
+     * Add a transition to the matrix.
+     * @param source int, index of source state
+     * @param action int, index of action
+     * @param destination int, index of destination state
+     * @param condition int, id of application condition
+     * @param probability double
+     */
+    public void addTransition(int source, int action, int destination, int condition, double probability){
+        logEdit(source);
+        if(pendingSource == null){
+            pendingSource = new int[16];
+            pendingAction = new int[16];
+            pendingDestination = new int[16];
+            pendingCondition = new int[16];
+            pendingProbability = new double[16];
+        }
+        else if(pendingSize == pendingSource.length)
+            grow(pendingSize * 2);
+        pendingSource[pendingSize] = source;
+        pendingAction[pendingSize] = action;
+        pendingDestination[pendingSize] = destination;
+        pendingCondition[pendingSize] = condition;
+        pendingProbability[pendingSize] = probability;
+        pendingSize++;
+    }
+
+    /**
+     * Remove transitions of a row.
+     * @param source int, index of source state
+     * @param action int, index of action
+     * @param destination int, index of destination state, -1 for every destination
+     * @return int, number of removed transitions
+     */
+    public int removeTransitions(int source, int action, int destination){
+        ensurePacked();
+        int firstRow = stateStart[source];
+        int lastRow = stateStart[source + 1];
+        int end = rowStart[lastRow];
+        int e = rowStart[firstRow];
+        int r = firstRow;
+        int removed = 0;
+        for(int row = firstRow; row < lastRow; row++){    // compact the rows of source in place
+            int start = e;
+            boolean match = rowAction[row] == action;
+            for(int old = rowStart[row]; old < rowStart[row + 1]; old++){
+                if(match && (destination == -1 || this.destination[old] == destination)){
+                    removed++;
+                    continue;
+                }
+                this.destination[e] = this.destination[old];
+                condition[e] = condition[old];
+                probability[e] = probability[old];
+                e++;
+            }
+            if(e > start){
+                rowAction[r] = rowAction[row];
+                rowStart[r] = start;
+                r++;
+            }
+        }
+        if(removed == 0)
+            return 0;
+        int rows = rowAction.length - (lastRow - r);
+        int size = this.destination.length - removed;
+        int[] newRowAction = new int[rows];
+        int[] newRowStart = new int[rows + 1];
+        System.arraycopy(rowAction, 0, newRowAction, 0, r);
+        System.arraycopy(rowAction, lastRow, newRowAction, r, rows - r);
+        System.arraycopy(rowStart, 0, newRowStart, 0, r);
+        for(int row = lastRow; row <= rowAction.length; row++)
+            newRowStart[r + row - lastRow] = rowStart[row] - removed;
+        for(int s = source + 1; s < stateStart.length; s++)
+            stateStart[s] -= lastRow - r;
+        rowAction = newRowAction;
+        rowStart = newRowStart;
+        this.destination = removeRange(this.destination, e, end);
+        condition = removeRange(condition, e, end);
+        double[] newProbability = new double[size];
+        System.arraycopy(probability, 0, newProbability, 0, e);
+        System.arraycopy(probability, end, newProbability, e, size - e);
+        probability = newProbability;
+        resetIndexes();
+        logEdit(source);
+        return removed;
+    }
+
+    private static int[] removeRange(int[] array, int from, int to){
+        int[] result = new int[array.length - (to - from)];
+        System.arraycopy(array, 0, result, 0, from);
+        System.arraycopy(array, to, result, from, array.length - to);
+        return result;
+    }
+
+    /**
+     * Change the probability of transitions of a row.
+     * @param source int, index of source state
+     * @param action int, index of action
+     * @param destination int, index of destination state, -1 for every destination
+     * @param probability double
+     * @return int, number of changed transitions
+     */
+    public int setProbability(int source, int action, int destination, double probability){
+        ensurePacked();
+        int changed = 0;
+        for(int r = stateStart[source]; r < stateStart[source + 1]; r++){
+            if(rowAction[r] != action)
+                continue;
+            for(int e = rowStart[r]; e < rowStart[r + 1]; e++){
+                if((destination == -1 || this.destination[e] == destination) && this.probability[e] != probability){
+                    this.probability[e] = probability;
+                    changed++;
+                }
+            }
+        }
+        if(changed > 0){
+            predecessorStart = null;
+            predecessorSource = null;
+            predecessorLive = null;
+            logEdit(source);
+        }
+        return changed;
+    }
+
+    /**
+     * Start recording the source state of every edit, so results computed before can be brought up to date.
+     * @see #editedSince(int)
+     */
+    void trackEdits(){
+        if(edits == null)
+            edits = new int[16];
+    }
+
+    /**
+     * @return int, number of changes to the transitions, loading included
+     */
+    int modCount(){
+        return modCount;
+    }
+
+    /**
+     * @return int, number of edits since trackEdits
+     */
+    int editCount(){
+        return editCount;
+    }
+
+    /**
+     * @param from int, an earlier editCount
+     * @return boolean[] per state, true for the sources of the edits since from
+     */
+    boolean[] editedSince(int from){
+        boolean[] result = new boolean[states.size()];
+        for(int i = from; i < editCount; i++)
+            result[edits[i]] = true;
+        return result;
+    }
+
+    private void logEdit(int source){
+        modCount++;
+        if(edits == null)
+            return;
+        if(editCount == edits.length)
+            edits = Arrays.copyOf(edits, editCount * 2);
+        edits[editCount++] = source;
+    }
+
+    /**
+     * @return number of transitions
+     */
+    public int size(){
+        ensurePacked();
+        return destination.length;
+    }
+
+    /**
+     * Check state has an outgoing transition labeled by action
+     * @param state int, index of state
+     * @param action int, index of action, -1 for unknown action
+     * @return boolean
+     */
+    public boolean hasAction(int state, int action){
+        ensurePacked();
+        for(int r = stateStart[state]; r < stateStart[state + 1]; r++){
+            if(rowAction[r] == action)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param action int, index of action
+     * @return indices of the states that have an outgoing transition labeled by action, in increasing order
+     */
+    public int[] statesWithAction(int action){
+        ensurePacked();
+        if(actionStart == null){
+            actionStart = new int[actions.size() + 1];
+            for(int r = 0; r < rowAction.length; r++)
+                actionStart[rowAction[r] + 1]++;
+            for(int a = 0; a < actions.size(); a++)
+                actionStart[a + 1] += actionStart[a];
+            actionState = new int[rowAction.length];
+            int[] next = Arrays.copyOf(actionStart, actions.size());
+            for(int s = 0; s < stateStart.length - 1; s++){
+                for(int r = stateStart[s]; r < stateStart[s + 1]; r++)
+                    actionState[next[rowAction[r]]++] = s;
+            }
+        }
+        return Arrays.copyOfRange(actionState, actionStart[action], actionStart[action + 1]);
+    }
+
+    /**
+     * Print the rows of a state, grouped by action.
+     * @param state int, index of state
+     */
+    public void print(int state){
+        ensurePacked();
+        for(int r = stateStart[state]; r < stateStart[state + 1]; r++){
+            System.out.println(actions.getName(rowAction[r]));
+            for(int e = rowStart[r]; e < rowStart[r + 1]; e++){
+                System.out.println("  " + states.getName(destination[e]));
+                System.out.println("\t" + bddService.toSharedString(bddService.getCondition(condition[e])).replace("\n", "\n\t") + "/" + probability[e]);
+            }
+            System.out.println("-----------");
+        }
+    }
+
+    /**
+     * Scratch space of one multiplication: the states whose input row has a non-trivial condition and a
+     * stamp per state marking the destinations of the row being multiplied. <br>
+     * A workspace is used by one thread at a time, threads multiplying rows with the same input take a fork each.
+     */
+    static class Workspace {
+        int[] zeroStates;
+        int zeroCount;
+        boolean[] inZeroStates;
+        int[] mark;
+        int stamp;
+        TransitionAccumulator accumulator;
+        /**
+         * condition id of true
+         */
+        int oneId;
+
+        Workspace(int numberOfStates, BDDService bddService){
+            oneId = bddService.intern(bddService.getOne());
+            zeroStates = new int[numberOfStates];
+            inZeroStates = new boolean[numberOfStates];
+            mark = new int[numberOfStates];
+            accumulator = new TransitionAccumulator(bddService);
+        }
+
+        /**
+         * Workspace for another thread: shares the states with non-trivial conditions, has its own marks.
+         * Forks must not be updated.
+         * @return Workspace
+         */
+        Workspace fork(){
+            Workspace result = new Workspace(0, accumulator.getBDDService());
+            result.zeroStates = zeroStates;
+            result.zeroCount = zeroCount;
+            result.inZeroStates = inZeroStates;
+            result.mark = new int[mark.length];
+            return result;
+        }
+
+        /**
+         * Keep the workspace valid after the input row of state d is replaced in place (Gauss-Seidel updates).
+         * States whose row no longer has non-trivial conditions may stay listed, they just contribute nothing.
+         * @param d int, index of state
+         * @param input ResultSet holding the new row of d
+         */
+        void update(int d, ResultSet input){
+            if(inZeroStates[d])
+                return;
+            for(int i = 0; i < input.rowSize(d); i++){
+                if(input.conditionAt(d, i) != oneId){
+                    inZeroStates[d] = true;
+                    zeroStates[zeroCount++] = d;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Prepare the workspace for multiplying rows with input.
+     * @param input ResultSet (columnar matrix)
+     * @return Workspace
+     */
+    Workspace workspace(ResultSet input){
+        ensurePacked();
+        int numberOfStates = stateStart.length - 1;
+        Workspace workspace = new Workspace(numberOfStates, bddService);
+        for(int d = 0; d < numberOfStates; d++)
+            workspace.update(d, input);
+        return workspace;
+    }
+
+    /**
+     * Calculate product of a row of the matrix and a ResultSet (columnar matrix), visiting only the stored entries. <br>
+     * A destination without transitions contributes its input conditions with probability zero, these come from
+     * the workspace instead of walking every state. With a feature model, products that no valid product satisfies
+     * are dropped.
+     * @param state int, index of state
+     * @param input ResultSet (columnar matrix)
+     * @param workspace Workspace prepared for input
+     * @return ArrayList of Transitions
+     */
+    ArrayList<Transition> multiplyRow(int state, ResultSet input, Workspace workspace){
+        ensurePacked();
+        BDD one = bddService.getOne();
+        boolean restricted = bddService.hasFeatureModel();
+        ArrayList<ArrayList<Transition>> results = new ArrayList<ArrayList<Transition>>();
+        for(int r = stateStart[state]; r < stateStart[state + 1]; r++){
+            workspace.stamp++;
+            TransitionAccumulator partialResult = workspace.accumulator;
+            partialResult.clear();
+            for(int e = rowStart[r]; e < rowStart[r + 1]; e++){
+                int d = destination[e];
+                workspace.mark[d] = workspace.stamp;
+                BDD cond = bddService.getCondition(condition[e]);
+                int size = input.rowSize(d);
+                if(size == 0){
+                    if(!cond.equals(one))
+                        partialResult.add(cond, 0);
+                }
+                else{
+                    for(int i = 0; i < size; i++){
+                        BDD bddProduct = bddService.and(cond, bddService.getCondition(input.conditionAt(d, i)));
+                        if(restricted && bddProduct.isZero())
+                            continue;
+                        partialResult.add(bddProduct, probability[e] * input.probabilityAt(d, i));
+                    }
+                }
+            }
+            for(int i = 0; i < workspace.zeroCount; i++){
+                int d = workspace.zeroStates[i];
+                if(workspace.mark[d] == workspace.stamp)
+                    continue;
+                for(int j = 0; j < input.rowSize(d); j++){
+                    if(input.conditionAt(d, j) != workspace.oneId)
+                        partialResult.add(bddService.getCondition(input.conditionAt(d, j)), 0);
+                }
+            }
+            results.add(partialResult.toList());
+        }
+        Transition.minimize(results);
+        if(results.size() == 0)
+            return new ArrayList<Transition>();
+        return results.get(0);
+    }
+
+    /**
+     * ADD form of multiplyRow, exact for every product: the value of an action is the sum over its transitions of
+     * condition * probability * input value of the destination, and the value of the row is the minimum over the
+     * actions enabled in the product (some transition condition holds), 0 in products where no action is enabled.
+     * @param state int, index of state
+     * @param input int[], ADD of every state
+     * @param add ADD manager of input
+     * @param conditions int[], 0/1 ADD of every condition id
+     * @return int, ADD of the product
+     */
+    int multiplyRow(int state, int[] input, ADD add, int[] conditions){
+        ensurePacked();
+        int result = add.constant(Double.POSITIVE_INFINITY);
+        for(int r = stateStart[state]; r < stateStart[state + 1]; r++){
+            int sum = add.getZero();
+            int enabled = add.getZero();
+            for(int e = rowStart[r]; e < rowStart[r + 1]; e++){
+                int c = conditions[condition[e]];
+                int weighted = add.apply(ADD.TIMES, add.constant(probability[e]), input[destination[e]]);
+                sum = add.apply(ADD.PLUS, sum, add.apply(ADD.TIMES, c, weighted));
+                enabled = add.apply(ADD.MAX, enabled, c);
+            }
+            result = add.apply(ADD.MIN, result, add.apply(ADD.MASK, sum, enabled));
+        }
+        return add.finite(result);
+    }
+
+    /**
+     * Conjoin the condition of every transition with a feature model, transitions whose condition becomes false
+     * are removed, and so are rows left without transitions.
+     * @param featureModel BDD
+     */
+    void restrict(BDD featureModel){
+        ensurePacked();
+        int[] restricted = new int[bddService.conditionCount()];
+        Arrays.fill(restricted, -1);
+        int zero = -2;
+        int e = 0;
+        int r = 0;
+        int[] newStateStart = new int[stateStart.length];
+        for(int s = 0; s < stateStart.length - 1; s++){
+            for(int row = stateStart[s]; row < stateStart[s + 1]; row++){
+                int start = e;
+                for(int old = rowStart[row]; old < rowStart[row + 1]; old++){
+                    int c = condition[old];
+                    if(restricted[c] == -1){
+                        BDD b = bddService.and(bddService.getCondition(c), featureModel);
+                        restricted[c] = b.isZero() ? zero : bddService.intern(b);
+                    }
+                    if(restricted[c] == zero)
+                        continue;
+                    destination[e] = destination[old];
+                    condition[e] = restricted[c];
+                    probability[e] = probability[old];
+                    e++;
+                }
+                if(e > start){
+                    rowAction[r] = rowAction[row];
+                    rowStart[r] = start;
+                    r++;
+                }
+            }
+            newStateStart[s + 1] = r;
+        }
+        rowStart[r] = e;
+        stateStart = newStateStart;
+        rowAction = Arrays.copyOf(rowAction, r);
+        rowStart = Arrays.copyOf(rowStart, r + 1);
+        destination = Arrays.copyOf(destination, e);
+        condition = Arrays.copyOf(condition, e);
+        probability = Arrays.copyOf(probability, e);
+        resetIndexes();
+        modCount++;
+    }
+
+    /**
+     * Find the states that can reach target through states of through, along transitions with nonzero probability
+     * and satisfiable application condition (backward breadth first search over the predecessor index).
+     * @param target boolean[] per state
+     * @param through boolean[] per state
+     * @return boolean[] per state, true for target states and states that can reach them
+     */
+    public boolean[] canReach(boolean[] target, boolean[] through){
+        ensurePacked();
+        buildPredecessors();
+        int numberOfStates = stateStart.length - 1;
+        boolean[] reached = new boolean[numberOfStates];
+        int[] queue = new int[numberOfStates];
+        int head = 0, tail = 0;
+        for(int s = 0; s < numberOfStates; s++){
+            if(target[s]){
+                reached[s] = true;
+                queue[tail++] = s;
+            }
+        }
+        while(head < tail){
+            int d = queue[head++];
+            for(int p = predecessorStart[d]; p < predecessorStart[d + 1]; p++){
+                int s = predecessorSource[p];
+                if(!reached[s] && through[s] && predecessorLive[p]){
+                    reached[s] = true;
+                    queue[tail++] = s;
+                }
+            }
+        }
+        return reached;
+    }
+
+    /**
+     * Find the states whose rows read the given states, directly or through states of through: every state with
+     * an entry to a state found, whatever its probability and condition.
+     * @param states boolean[] per state
+     * @param through boolean[] per state, null for all states
+     * @param steps int, maximum length of the paths, -1 for no limit
+     * @return boolean[] per state, true for the given states and the states found
+     */
+    public boolean[] dependants(boolean[] states, boolean[] through, int steps){
+        ensurePacked();
+        buildPredecessors();
+        int numberOfStates = stateStart.length - 1;
+        boolean[] reached = states.clone();
+        int[] queue = new int[numberOfStates];
+        int[] depth = new int[numberOfStates];
+        int head = 0, tail = 0;
+        for(int s = 0; s < numberOfStates; s++){
+            if(reached[s])
+                queue[tail++] = s;
+        }
+        while(head < tail){
+            int d = queue[head++];
+            if(steps != -1 && depth[d] == steps)
+                continue;
+            for(int p = predecessorStart[d]; p < predecessorStart[d + 1]; p++){
+                int s = predecessorSource[p];
+                if(!reached[s]){
+                    reached[s] = true;
+                    depth[s] = depth[d] + 1;
+                    if(through == null || through[s])
+                        queue[tail++] = s;
+                }
+            }
+        }
+        return reached;
+    }
+
+    /**
+     * Build the predecessor index from the packed rows.
+     */
+    private void buildPredecessors(){
+        if(predecessorStart != null)
+            return;
+        int numberOfStates = stateStart.length - 1;
+        predecessorStart = new int[numberOfStates + 1];
+        for(int e = 0; e < destination.length; e++)
+            predecessorStart[destination[e] + 1]++;
+        for(int d = 0; d < numberOfStates; d++)
+            predecessorStart[d + 1] += predecessorStart[d];
+        predecessorSource = new int[destination.length];
+        predecessorLive = new boolean[destination.length];
+        int[] next = Arrays.copyOf(predecessorStart, numberOfStates);
+        for(int s = 0; s < numberOfStates; s++){
+            for(int r = stateStart[s]; r < stateStart[s + 1]; r++){
+                for(int e = rowStart[r]; e < rowStart[r + 1]; e++){
+                    int p = next[destination[e]]++;
+                    predecessorSource[p] = s;
+                    predecessorLive[p] = probability[e] > 0 && !bddService.getCondition(condition[e]).isZero();
+                }
+            }
+        }
+    }
+
+    private void resetIndexes(){
+        predecessorStart = null;
+        predecessorSource = null;
+        predecessorLive = null;
+        actionStart = null;
+        actionState = null;
+    }
+
+    private void ensurePacked(){
+        if(stateStart == null)
+            pack();
+        else if(pendingSize > 0)
+            merge();
+    }
+
+    /**
+     * Sort buffered transitions by (source, action) with two stable counting sorts and build the CSR arrays.
+     */
+    private void pack(){
+        int numberOfStates = states.size();
+        int[] order = new int[pendingSize];
+        for(int i = 0; i < pendingSize; i++)
+            order[i] = i;
+        order = countingSort(order, pendingAction, actions.size());
+        order = countingSort(order, pendingSource, numberOfStates);
+
+        int rows = 0;
+        for(int i = 0; i < pendingSize; i++){
+            if(i == 0 || pendingSource[order[i]] != pendingSource[order[i - 1]] || pendingAction[order[i]] != pendingAction[order[i - 1]])
+                rows++;
+        }
+        stateStart = new int[numberOfStates + 1];
+        rowAction = new int[rows];
+        rowStart = new int[rows + 1];
+        destination = new int[pendingSize];
+        condition = new int[pendingSize];
+        probability = new double[pendingSize];
+
+        int r = -1;
+        for(int i = 0; i < pendingSize; i++){
+            int t = order[i];
+            if(i == 0 || pendingSource[t] != pendingSource[order[i - 1]] || pendingAction[t] != pendingAction[order[i - 1]]){
+                r++;
+                rowAction[r] = pendingAction[t];
+                rowStart[r] = i;
+                stateStart[pendingSource[t] + 1]++;
+            }
+            destination[i] = pendingDestination[t];
+            condition[i] = pendingCondition[t];
+            probability[i] = pendingProbability[t];
+        }
+        rowStart[rows] = pendingSize;
+        for(int s = 0; s < numberOfStates; s++)
+            stateStart[s + 1] += stateStart[s];
+
+        pendingSize = 0;
+        pendingSource = null;
+        pendingAction = null;
+        pendingDestination = null;
+        pendingCondition = null;
+        pendingProbability = null;
+    }
+
+    /**
+     * Merge the transitions added since the matrix was packed into the rows of their sources, after the entries
+     * already there as pack would put them. Only the states that got transitions are walked, the rows between them
+     * are copied in blocks.
+     */
+    private void merge(){
+        int numberOfStates = stateStart.length - 1;
+        int[] order = new int[pendingSize];
+        for(int i = 0; i < pendingSize; i++)
+            order[i] = i;
+        order = countingSort(order, pendingAction, actions.size());
+        order = countingSort(order, pendingSource, numberOfStates);
+
+        int[] newStateStart = new int[numberOfStates + 1];
+        int[] newRowAction = new int[rowAction.length + pendingSize];
+        int[] newRowStart = new int[newRowAction.length + 1];
+        int[] newDestination = new int[destination.length + pendingSize];
+        int[] newCondition = new int[newDestination.length];
+        double[] newProbability = new double[newDestination.length];
+        int r = 0;
+        int e = 0;
+        int copied = 0;    // states before copied are done
+        int p = 0;
+        while(p < pendingSize){
+            int s = pendingSource[order[p]];
+            // rows of the states copied .. s-1 are unchanged, shifted by r - stateStart[copied] rows and e - their first entry
+            int fromRow = stateStart[copied];
+            int toRow = stateStart[s];
+            int shift = e - rowStart[fromRow];
+            System.arraycopy(rowAction, fromRow, newRowAction, r, toRow - fromRow);
+            for(int row = fromRow; row < toRow; row++)
+                newRowStart[r + row - fromRow] = rowStart[row] + shift;
+            for(int t = copied; t < s; t++)
+                newStateStart[t + 1] = stateStart[t + 1] + r - fromRow;
+            int entries = rowStart[toRow] - rowStart[fromRow];
+            System.arraycopy(destination, rowStart[fromRow], newDestination, e, entries);
+            System.arraycopy(condition, rowStart[fromRow], newCondition, e, entries);
+            System.arraycopy(probability, rowStart[fromRow], newProbability, e, entries);
+            r += toRow - fromRow;
+            e += entries;
+            // rows of s, old and new merged by action
+            int row = stateStart[s];
+            while(row < stateStart[s + 1] || (p < pendingSize && pendingSource[order[p]] == s)){
+                boolean added = p < pendingSize && pendingSource[order[p]] == s;
+                int action = row < stateStart[s + 1] && (!added || rowAction[row] <= pendingAction[order[p]])
+                        ? rowAction[row] : pendingAction[order[p]];
+                newRowAction[r] = action;
+                newRowStart[r] = e;
+                if(row < stateStart[s + 1] && rowAction[row] == action){
+                    int count = rowStart[row + 1] - rowStart[row];
+                    System.arraycopy(destination, rowStart[row], newDestination, e, count);
+                    System.arraycopy(condition, rowStart[row], newCondition, e, count);
+                    System.arraycopy(probability, rowStart[row], newProbability, e, count);
+                    e += count;
+                    row++;
+                }
+                while(p < pendingSize && pendingSource[order[p]] == s && pendingAction[order[p]] == action){
+                    int t = order[p++];
+                    newDestination[e] = pendingDestination[t];
+                    newCondition[e] = pendingCondition[t];
+                    newProbability[e] = pendingProbability[t];
+                    e++;
+                }
+                r++;
+            }
+            newStateStart[s + 1] = r;
+            copied = s + 1;
+        }
+        int fromRow = stateStart[copied];
+        int toRow = rowAction.length;
+        int shift = e - rowStart[fromRow];
+        System.arraycopy(rowAction, fromRow, newRowAction, r, toRow - fromRow);
+        for(int row = fromRow; row <= toRow; row++)
+            newRowStart[r + row - fromRow] = rowStart[row] + shift;
+        for(int t = copied; t < numberOfStates; t++)
+            newStateStart[t + 1] = stateStart[t + 1] + r - fromRow;
+        int entries = rowStart[toRow] - rowStart[fromRow];
+        System.arraycopy(destination, rowStart[fromRow], newDestination, e, entries);
+        System.arraycopy(condition, rowStart[fromRow], newCondition, e, entries);
+        System.arraycopy(probability, rowStart[fromRow], newProbability, e, entries);
+        r += toRow - fromRow;
+
+        stateStart = newStateStart;
+        rowAction = Arrays.copyOf(newRowAction, r);
+        rowStart = Arrays.copyOf(newRowStart, r + 1);
+        destination = newDestination;
+        condition = newCondition;
+        probability = newProbability;
+        pendingSize = 0;
+        resetIndexes();
+    }
+
+    private void grow(int capacity){
+        pendingSource = Arrays.copyOf(pendingSource, capacity);
+        pendingAction = Arrays.copyOf(pendingAction, capacity);
+        pendingDestination = Arrays.copyOf(pendingDestination, capacity);
+        pendingCondition = Arrays.copyOf(pendingCondition, capacity);
+        pendingProbability = Arrays.copyOf(pendingProbability, capacity);
+    }
+
+    private static int[] countingSort(int[] order, int[] keys, int range){
+        int[] count = new int[range + 1];
+        for(int i : order)
+            count[keys[i] + 1]++;
+        for(int k = 0; k < range; k++)
+            count[k + 1] += count[k];
+        int[] result = new int[order.length];
+        for(int i : order)
+            result[count[keys[i]]++] = i;
+        return result;
+    }
+}
@@ -1,7 +1,10 @@
 package dadfarnia.ir.MDPF;
 
+import net.sf.javabdd.BDD;
 import org.junit.*;
 
+import java.util.ArrayList;
+
 
 
 /**
@@ -25,6 +28,18 @@ public class MDPFTest {
     }
 
 
+    @Test
+    public void testStateActions(){
+        System.out.println("Test actions of states.");
+        State s1 = mdpf.getStates().get(1);
+        Assert.assertEquals(s1.getName(), "s1");
+        Assert.assertTrue(s1.hasAction("try"));
+        Assert.assertTrue(s1.hasAction("wait"));
+        Assert.assertFalse(s1.hasAction("send"));
+        Assert.assertFalse(s1.hasAction("unknown"));
+        Assert.assertEquals(s1.multiply(mdpf.sat("$send")).size(), 2);
+    }
+
     @Test
     public void testTrueSatResult(){
         System.out.println("Print Result of 'True'");
@@ -176,4 +191,597 @@ public class MDPFTest {
     }
 
 
+    @Test
+    public void testBoundedUntilSatResult(){
+        System.out.println("Print Result of 'send Until<=3 wait'");
+        ResultSet result = mdpf.sat("U3$send$wait");
+        Assert.assertEquals(result.size(), 5);
+        Assert.assertEquals(result.get("s1").size(), 1);
+        Assert.assertEquals(result.get("s1").get(0).toString(), "T/1.0");
+        Assert.assertEquals(result.get("s0").size(), 0);
+        Assert.assertEquals(result.get("s2").size(), 0);
+        Assert.assertEquals(result.get("s3").size(), 0);
+        Assert.assertEquals(result.get("s4").size(), 0);
+    }
+
+    @Test
+    public void testBoundedUntilConverges(){
+        System.out.println("Print Result of 'True Until<=1000000 send'");
+        ResultSet converged = mdpf.sat("U20$True$send");
+        ResultSet result = mdpf.sat("U1000000$True$send");
+        Assert.assertTrue(result.equals(converged));
+        Assert.assertEquals(result.get("s2").get(0).toString(), "T/1.0");
+        Assert.assertTrue(mdpf.isConverged());
+    }
+
+    @Test
+    public void testNotConverged(){
+        System.out.println("Test until stopped at the iteration cap.");
+        mdpf.setMaxIterations(2);
+        mdpf.sat("F$send");
+        Assert.assertFalse(mdpf.isConverged());
+        mdpf.sat("U3$True$send");
+        Assert.assertTrue(mdpf.isConverged());
+        mdpf.sat("&F$send U3$True$send");
+        Assert.assertFalse(mdpf.isConverged());
+        mdpf.setDecisionDiagrams(true);
+        mdpf.sat("~F$send");
+        Assert.assertFalse(mdpf.isConverged());
+        mdpf.sat("F$send", "M B");
+        Assert.assertFalse(mdpf.isConverged());
+        mdpf.setSymbolic(true);
+        mdpf.sat("F$send");
+        Assert.assertFalse(mdpf.isConverged());
+        mdpf.setSymbolic(false);
+        mdpf.setMaxIterations(10000);
+        mdpf.sat("F$send");
+        Assert.assertTrue(mdpf.isConverged());
+    }
+
+    @Test
+    public void testUnboundedUntilSatResult(){
+        System.out.println("Print Result of 'Eventually send'");
+        ResultSet result = mdpf.sat("F$send");
+        Assert.assertTrue(result.equals(mdpf.sat("U$True$send")));
+        Assert.assertTrue(result.equals(mdpf.sat("U1000$True$send")));
+        Assert.assertEquals(result.get("s2").size(), 1);
+        Assert.assertEquals(result.get("s2").get(0).toString(), "T/1.0");
+        mdpf.setGaussSeidel(false);
+        Assert.assertTrue(result.equals(mdpf.sat("F$send")));
+        Assert.assertEquals(mdpf.sat("&$False$send").get("s2").size(), 0);
+    }
+
+    @Test
+    public void testFormulaCompile(){
+        System.out.println("Test formula parsing.");
+        Formula formula = mdpf.compile("&@$try @$try");
+        Assert.assertTrue(formula == mdpf.compile("&@$try @$try"));
+        Assert.assertTrue(formula.getLeft() == formula.getRight());
+        Assert.assertEquals(mdpf.compile("U3$send$wait").getBound(), 3);
+        Assert.assertEquals(mdpf.compile("F$send").getBound(), -1);
+        Assert.assertEquals(BDDService.infixToPrefix("U & (~B)"), "&$U~$B");
+        Assert.assertEquals(BDDService.infixToPrefix("U & ~B | M"), "|&$U~$B$M");
+        Assert.assertTrue(mdpf.sat("@$wait").get("s4").toString().contains("(not B) and U/1.0"));
+        mdpf.setCompiledLimit(4);
+        Assert.assertTrue(formula == mdpf.compile("&@$try @$try"));
+        mdpf.compile("@$send");
+        Assert.assertFalse(formula == mdpf.compile("&@$try @$try"));
+        Assert.assertTrue(mdpf.sat("@$wait").get("s4").toString().contains("(not B) and U/1.0"));
+        mdpf.sat(java.util.Arrays.asList("@$try", "|@$try @$wait"));    // crosses the limit, reset before the batch
+        Assert.assertTrue(mdpf.compile("|@$try @$wait").getLeft() == mdpf.compile("@$try"));
+    }
+
+    @Test
+    public void testConditionCache(){
+        System.out.println("Test application condition cache.");
+        BDDService bddService = new BDDService(new String[]{"U", "B"});
+        int id = bddService.internCondition("U & (~B)");
+        Assert.assertEquals(bddService.internCondition("U&(~B)"), id);
+        Assert.assertEquals(bddService.internCondition("U & ~B"), id);
+        Assert.assertEquals(bddService.internCondition("(~B) & U"), id);
+        Assert.assertTrue(bddService.internCondition("U | B") != id);
+        Assert.assertEquals(bddService.toString(bddService.getCondition(id)), "U and (not B)");
+    }
+
+    @Test
+    public void testJsonTransitionsBeforeStates() throws java.io.IOException {
+        System.out.println("Test json model with Transitions first.");
+        java.io.File file = java.io.File.createTempFile("MDPFReordered", ".json");
+        file.deleteOnExit();
+        java.io.FileWriter writer = new java.io.FileWriter(file);
+        writer.write("{ \"Transitions\" : [ {\"Source\" : \"s0\", \"Destination\" : \"s1\", \"Label\" : \"go\", " +
+                "\"Probability\" : 1, \"ApplicationCondition\" : \"A\"} ], " +
+                "\"States\" : \"s0 s1\", \"Propositions\" : \"A\" }");
+        writer.close();
+        MDPF model = new MDPF(file.getPath());
+        Assert.assertEquals(model.getStates().size(), 2);
+        Assert.assertTrue(model.getStates().get(0).hasAction("go"));
+        ResultSet result = model.sat("@$True");
+        Assert.assertEquals(result.get("s0").get(0).toString(), "A/1.0");
+    }
+
+    @Test
+    public void testSnapshotRoundTrip() throws java.io.IOException {
+        System.out.println("Test saving and loading a binary snapshot.");
+        java.io.File file = java.io.File.createTempFile("MDPFSnapshot", ".mdpf");
+        file.deleteOnExit();
+        mdpf.save(file.getPath());
+        MDPF loaded = new MDPF(file.getPath());
+        Assert.assertEquals(loaded.getStates().size(), mdpf.getStates().size());
+        Assert.assertTrue(loaded.getStates().get(1).hasAction("try"));
+        Assert.assertEquals(loaded.sat("@$wait").get("s4").toString(), mdpf.sat("@$wait").get("s4").toString());
+        Assert.assertEquals(loaded.sat("F$send").get("s2").get(0).toString(), "T/1.0");
+    }
+
+    @Test
+    public void testParallelMultiply(){
+        System.out.println("Test parallel evaluation gives the sequential results.");
+        ResultSet next = mdpf.sat("@$wait");
+        ResultSet bounded = mdpf.sat("U3$True$send");
+        ResultSet eventually = mdpf.sat("F$send");
+        mdpf.setParallelism(2);
+        Assert.assertTrue(next.equals(mdpf.sat("@$wait")));
+        Assert.assertTrue(bounded.equals(mdpf.sat("U3$True$send")));
+        Assert.assertTrue(eventually.equals(mdpf.sat("F$send")));
+        mdpf.setParallelism(1);
+    }
+
+    @Test
+    public void testTransitionSum(){
+        System.out.println("Test sum of transitions.");
+        BDDService bddService = new BDDService(new String[]{"U", "B"});
+        Transition u = new Transition(bddService.conditionToBDD("U"), 0.25, bddService);
+        Transition b = new Transition(bddService.conditionToBDD("B"), 0.5, bddService);
+        ArrayList<Transition> r1 = new ArrayList<Transition>();
+        r1.add(u);
+        r1.add(b);
+        ArrayList<Transition> r2 = new ArrayList<Transition>();
+        r2.add(new Transition(bddService.conditionToBDD("U"), 0.5, bddService));
+        ArrayList<Transition> sum = Transition.sum(r1, r2);
+        Assert.assertEquals(sum.size(), 2);
+        Assert.assertEquals(sum.get(0).toString(), "U/0.75");
+        Assert.assertEquals(Transition.sum(r1, r2.get(0)).get(0).toString(), "U/0.75");
+        Assert.assertEquals(u.getProbability(), 0.25, 0);
+    }
+
+    @Test
+    public void testDecisionDiagrams(){
+        System.out.println("Test evaluation with decision diagrams.");
+        mdpf.setDecisionDiagrams(true);
+        Assert.assertEquals(mdpf.sat("@$wait").get("s4").toString(), "[(not B) and U/1.0]");
+        ResultSet result = mdpf.sat("U3$True$send");
+        Assert.assertEquals(result.get("s1").size(), 1);
+        Assert.assertEquals(result.get("s3").get(0).toString(), "M and B and (not A)/0.8");
+        ResultSet eventually = mdpf.sat("F$send");
+        Assert.assertEquals(eventually.get("s2").get(0).toString(), "T/1.0");
+        Assert.assertEquals(eventually.get("s1").get(0).getProbability(), 1, 1e-5);
+        Assert.assertEquals(eventually.get("s4").size(), 0);
+        mdpf.setDecisionDiagrams(false);
+    }
+
+    @Test
+    public void testMinimize(){
+        System.out.println("Test minimization of action columns.");
+        BDDService bddService = mdpf.getBDDService();
+        ArrayList<ArrayList<Transition>> columns = new ArrayList<ArrayList<Transition>>();
+        String[][] rows = {{"A", "0.5", "B", "0.9"}, {"T", "0.5", "B", "0.7"}, {"B", "0.7", "A & B", "0.95", "R", "0.2"}};
+        for(String[] row : rows){
+            ArrayList<Transition> column = new ArrayList<Transition>();
+            for(int i = 0; i < row.length; i += 2){
+                BDD condition = row[i].equals("T") ? bddService.getOne() : bddService.conditionToBDD(row[i]);
+                column.add(new Transition(condition, Double.parseDouble(row[i + 1]), bddService));
+            }
+            columns.add(column);
+        }
+        ArrayList<ArrayList<Transition>> input = new ArrayList<ArrayList<Transition>>(columns);
+        Transition.minimize(input);
+        Assert.assertEquals(input.size(), 1);
+        Assert.assertEquals(input.get(0).toString(), "[T/0.5, B/0.7, R/0.2]");
+        for(int shift = 1; shift < columns.size(); shift++){
+            input = new ArrayList<ArrayList<Transition>>();
+            for(int c = 0; c < columns.size(); c++)
+                input.add(columns.get((c + shift) % columns.size()));
+            Transition.minimize(input);
+            ArrayList<String> entries = new ArrayList<String>();
+            for(Transition t : input.get(0))
+                entries.add(t.toString());
+            java.util.Collections.sort(entries);
+            Assert.assertEquals(entries.toString(), "[B/0.7, R/0.2, T/0.5]");
+        }
+        input = new ArrayList<ArrayList<Transition>>();
+        for(int c = 0; c < 3; c++){
+            ArrayList<Transition> column = new ArrayList<Transition>();
+            column.add(new Transition(bddService.conditionToBDD("U"), 0.3, bddService));
+            input.add(column);
+        }
+        Transition.minimize(input);
+        Assert.assertEquals(input.get(0).size(), 1);
+    }
+
+    @Test
+    public void testResultSetRows(){
+        System.out.println("Test rows of result sets.");
+        BDDService bddService = mdpf.getBDDService();
+        ResultSet result = mdpf.sat("@$send");
+        ResultSet copy = result.copy();
+        int a = bddService.intern(bddService.conditionToBDD("A"));
+        int b = bddService.intern(bddService.conditionToBDD("B"));
+        result.setRow(0, new int[]{a, b, a}, new double[]{0.5, 0.25, 0}, 2);
+        result.setApplicationConditionTrue(1);
+        Assert.assertEquals(result.rowSize(0), 2);
+        Assert.assertEquals(result.conditionAt(0, 1), b);
+        Assert.assertEquals(result.probabilityAt(0, 0), 0.5, 0);
+        Assert.assertEquals(result.get("s1").size(), 3);
+        Assert.assertEquals(result.get("s1").get(2).toString(), "T/1.0");
+        Assert.assertEquals(copy.get("s0").size(), 0);
+        Assert.assertEquals(copy.get("s1").toString(), "[B/0.8, A/0.0]");
+        Assert.assertTrue(result.not().get("s2").get(0).toString().equals("T/1.0"));
+        Assert.assertEquals(result.rowSize(0), 0);
+    }
+
+    @Test
+    public void testFeatureModel() throws java.io.IOException {
+        System.out.println("Test restricting the model to a feature model.");
+        Assert.assertEquals(mdpf.sat("@@$send").get("s4").size(), 2);
+        mdpf.setFeatureModel("~(A & B)");
+        ResultSet result = mdpf.sat("@@$send");
+        Assert.assertEquals(result.get("s4").size(), 0);
+        Assert.assertEquals(result.get("s1").toString(), "[B and (not A)/0.16000000000000003, (not B) and A/0.0]");
+
+        MDPF dimacs = new MDPF(getClass().getResource("/MDPFInput.json").getPath());
+        dimacs.readFeatureModel(getClass().getResource("/FeatureModel.cnf").getPath());
+        Assert.assertEquals(dimacs.sat("@@$send").get("s1").toString(), result.get("s1").toString());
+
+        java.io.File file = java.io.File.createTempFile("MDPFSnapshot", ".mdpf");
+        file.deleteOnExit();
+        mdpf.save(file.getPath());
+        Assert.assertEquals(new MDPF(file.getPath()).sat("@@$send").get("s4").size(), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnendedClause() throws java.io.IOException {
+        System.out.println("Test a feature model whose last clause has no 0.");
+        mdpf.getBDDService().dimacsToBDD(new java.io.BufferedReader(new java.io.StringReader("p cnf 2 2\n1 -2 0\n2")));
+    }
+
+    @Test
+    public void testProductProjection(){
+        System.out.println("Test evaluation in one product.");
+        Assert.assertEquals(mdpf.sat("@$send", "B")[1], 0.8, 0);
+        Assert.assertEquals(mdpf.sat("@$send", "A")[1], 0, 0);
+        Assert.assertEquals(mdpf.sat("U3$True$send", "M B")[3], 0.8, 1e-9);
+        Assert.assertEquals(mdpf.sat("F$send", "M B")[1], 1, 1e-5);
+        Assert.assertEquals(mdpf.sat("$try", "")[1], 1, 0);
+        Assert.assertTrue(mdpf.project("B M") == mdpf.project(" M  B"));
+        Assert.assertEquals(mdpf.project("M B").size(), 4);
+    }
+
+    @Test
+    public void testProbabilityBound(){
+        System.out.println("Test probability bounds.");
+        ResultSet result = mdpf.sat("P>=0.5[@$send]");
+        Assert.assertEquals(result.get("s1").toString(), "[B/1.0]");
+        Assert.assertEquals(result.get("s0").size(), 0);
+        Assert.assertEquals(mdpf.sat("P<=1[@$send]").get("s0").toString(), "[T/1.0]");
+        Assert.assertEquals(mdpf.compile("P >= 0.5 [ @ $send ]").toString(), "P>=0.5[@$send]");
+        Assert.assertEquals(mdpf.sat("P>=0.9[U3$True$send]", "M B")[3], 0, 0);
+        Assert.assertEquals(mdpf.sat("P>0.7[U3$True$send]", "M B")[3], 1, 0);
+        Assert.assertEquals(mdpf.sat("P>=0.99[F$send]", "M B")[1], 1, 0);
+        mdpf.setFeatureModel("B & ~A");
+        Assert.assertEquals(mdpf.sat("P<0.5[@$send]").get("s1").size(), 0);
+        Assert.assertEquals(mdpf.sat("P<0.5[@$send]").get("s0").toString(), "[B and (not A)/1.0]");
+    }
+
+    @Test
+    public void testBatch(){
+        System.out.println("Test evaluation of a batch of formulas.");
+        ArrayList<String> formulas = new ArrayList<String>();
+        formulas.add("@$send");
+        formulas.add("~@$send");
+        formulas.add("U3$True$send");
+        formulas.add("@$send");
+        ArrayList<ResultSet> results = mdpf.sat(formulas);
+        Assert.assertEquals(results.size(), 4);
+        for(int i = 0; i < formulas.size(); i++)
+            Assert.assertTrue(results.get(i).equals(mdpf.sat(formulas.get(i))));
+        Assert.assertFalse(results.get(0) == results.get(3));
+        mdpf.setDecisionDiagrams(true);
+        results = mdpf.sat(formulas);
+        Assert.assertEquals(results.get(2).get("s3").toString(), mdpf.sat("U3$True$send").get("s3").toString());
+    }
+
+    @Test
+    public void testIncrementalEdits(){
+        System.out.println("Test evaluation after edits.");
+        String[] formulas = {"@$send", "F$send", "U3$True$send", "~@$send"};
+        mdpf.setIncremental(true);
+        for(String formula : formulas)
+            mdpf.sat(formula);
+        Assert.assertEquals(mdpf.setProbability("s1", "s2", "try", 0.5), 2);
+        Assert.assertEquals(mdpf.removeTransition("s1", null, "wait"), 1);
+        mdpf.addTransition("s4", "s2", "retry", 0.5, "U");
+        Assert.assertFalse(mdpf.getStates().get(1).hasAction("wait"));
+        ArrayList<ResultSet> results = new ArrayList<ResultSet>();
+        for(String formula : formulas)
+            results.add(mdpf.sat(formula));
+        Assert.assertTrue(results.get(0).get("s1").toString().contains("B/0.5"));
+        mdpf.setIncremental(false);
+        for(int i = 0; i < formulas.length; i++)
+            Assert.assertTrue(results.get(i).equals(mdpf.sat(formulas[i])));
+    }
+
+    @Test
+    public void testEditsAfterPacking(){
+        System.out.println("Test edits merged into packed rows.");
+        String[] formulas = {"@$send", "@$retry", "U3$True$send", "F$try"};
+        MDPF edited = new MDPF(getClass().getResource("/MDPFInput.json").getPath());
+        edited.sat("@$send");
+        edited.addTransition("s4", "s2", "retry", 0.5, "U");
+        edited.addTransition("s1", "s3", "try", 0.2, "A");
+        edited.addTransition("s0", "s4", "retry", 1, "B");
+        Assert.assertEquals(edited.removeTransition("s1", null, "wait"), 1);
+        edited.addTransition("s1", "s0", "wait", 1, "R");
+        mdpf.addTransition("s4", "s2", "retry", 0.5, "U");
+        mdpf.addTransition("s1", "s3", "try", 0.2, "A");
+        mdpf.addTransition("s0", "s4", "retry", 1, "B");
+        Assert.assertEquals(mdpf.removeTransition("s1", null, "wait"), 1);
+        mdpf.addTransition("s1", "s0", "wait", 1, "R");
+        Assert.assertEquals(edited.size(), mdpf.size());
+        for(String formula : formulas){
+            ResultSet expected = mdpf.sat(formula);
+            ResultSet result = edited.sat(formula);
+            for(int i = 0; i < result.size(); i++)
+                Assert.assertEquals(result.get(i).toString(), expected.get(i).toString());
+        }
+    }
+
+    @Test
+    public void testSymbolic(){
+        System.out.println("Test symbolic evaluation.");
+        mdpf.setSymbolic(true);
+        Assert.assertEquals(mdpf.sat("@$wait").get("s4").toString(), "[(not B) and U/1.0]");
+        ResultSet result = mdpf.sat("U3$True$send");
+        Assert.assertEquals(result.get("s3").get(0).toString(), "M and B and (not A)/0.8");
+        ResultSet eventually = mdpf.sat("F$send");
+        Assert.assertEquals(eventually.get("s2").get(0).toString(), "T/1.0");
+        Assert.assertEquals(eventually.get("s1").get(0).getProbability(), 1, 1e-5);
+        Assert.assertEquals(eventually.get("s4").size(), 0);
+        mdpf.removeTransition("s2", null, "send");
+        Assert.assertEquals(mdpf.sat("F$send").get("s1").size(), 0);
+        mdpf.setSymbolic(false);
+    }
+
+    @Test
+    public void testSymbolicRead() throws Exception {
+        System.out.println("Test symbolic evaluation of a streamed model.");
+        SymbolicModelChecker checker = SymbolicModelChecker.read(getClass().getResource("/MDPFInput.json").getPath());
+        Assert.assertEquals(checker.size(), 5);
+        FormulaParser parser = new FormulaParser();
+        mdpf.setSymbolic(true);
+        SymbolicResultSet kept = checker.satSymbolic(parser.parse("@$wait"), 1e-6, 10000);
+        for(String formula : new String[]{"@$wait", "U3$True$send", "F$send", "~$try"}){
+            SymbolicResultSet result = checker.satSymbolic(parser.parse(formula), 1e-6, 10000);
+            ResultSet expected = mdpf.sat(formula);
+            for(State state : mdpf.getStates())
+                Assert.assertEquals(result.get(state.getName()).toString(), expected.get(state.getIndex()).toString());
+        }
+        Assert.assertEquals(kept.get("s4").toString(), "[(not B) and U/1.0]");
+        Assert.assertNull(kept.get("unknown"));
+        mdpf.setSymbolic(false);
+    }
+
+    @Test
+    public void testConditionWriters() throws java.io.IOException {
+        System.out.println("Test writers of conditions.");
+        BDDService bddService = mdpf.getBDDService();
+        BDD shared = bddService.conditionToBDD("(M & (A | R)) | (~M & B & (A | R))");
+        StringBuilder out = new StringBuilder();
+        bddService.writeShared(shared, out);
+        Assert.assertEquals(out.toString(), "#1 = A or R\n(M and #1) or ((not M) and B and #1)");
+        Assert.assertEquals(bddService.toSharedString(shared), out.toString());
+        Assert.assertEquals(bddService.toString(shared), "(M and (A or R)) or ((not M) and B and (A or R))");
+        BDD nested = bddService.conditionToBDD("M & (A | R)");
+        Assert.assertEquals(bddService.toString(nested), "M and (A or R)");
+        Assert.assertEquals(bddService.toSharedString(nested), "M and (A or R)");
+        BDD unshared = bddService.conditionToBDD("U & (~B)");
+        Assert.assertEquals(bddService.toSharedString(unshared), bddService.toString(unshared));
+        out = new StringBuilder();
+        bddService.writeCover(bddService.conditionToBDD("A | (B & ~A)"), out);
+        Assert.assertEquals(out.toString(), "B or A");
+        out = new StringBuilder();
+        bddService.writeCover(bddService.conditionToBDD("U & (~B)"), out);
+        Assert.assertEquals(out.toString(), "(not B) and U");
+        Assert.assertEquals(bddService.cover(shared).size(), 4);
+        out = new StringBuilder();
+        mdpf.sat("@$send").write(out);
+        Assert.assertTrue(out.toString().startsWith("s0\ns1\n\tB/0.8\n"));
+    }
+
+    @Test
+    public void testCubes(){
+        System.out.println("Test enumeration of cubes.");
+        BDDService bddService = mdpf.getBDDService();
+        final ArrayList<String> cubes = new ArrayList<String>();
+        bddService.forEachCube(bddService.conditionToBDD("U & (~B)"), new CubeVisitor() {
+            public boolean visit(byte[] cube) {
+                cubes.add(java.util.Arrays.toString(cube));
+                return true;
+            }
+        });
+        Assert.assertEquals(cubes.toString(), "[[-1, 0, -1, -1, 1]]");
+        final int[] count = new int[1];
+        boolean completed = bddService.forEachCube(bddService.conditionToBDD("A | B | R"), new CubeVisitor() {
+            public boolean visit(byte[] cube) {
+                count[0]++;
+                return count[0] < 2;
+            }
+        });
+        Assert.assertFalse(completed);
+        Assert.assertEquals(count[0], 2);
+        Assert.assertTrue(bddService.forEachCube(bddService.getZero(), null));
+    }
+
+    @Test
+    public void testQueryScope(){
+        System.out.println("Test freeing of query intermediates.");
+        BDDService bddService = mdpf.getBDDService();
+        ResultSet expected = mdpf.sat("U3$True$send");
+        int conditions = bddService.conditionCount();
+        for(int i = 0; i < 20; i++)
+            Assert.assertTrue(mdpf.sat("U3$True$send").equals(expected));
+        Assert.assertEquals(bddService.conditionCount(), conditions);
+        Assert.assertTrue(bddService.getStatistics().contains(" freed="));
+        Assert.assertFalse(bddService.getStatistics().contains(" freed=0 "));
+        bddService.setTableSizes(20000, 2000);
+        Assert.assertTrue(bddService.getStatistics().contains(" cache=2000 "));
+        BDDService sized = new BDDService(new String[]{"A", "B"}, 50000, 500);
+        Assert.assertTrue(sized.getStatistics().contains(" cache=500 "));
+    }
+
+    @Test
+    public void testQueryScopeDistinctFormulas(){
+        System.out.println("Test reclaiming conditions of different queries.");
+        BDDService bddService = mdpf.getBDDService();
+        ResultSet kept = mdpf.sat("F2$send");
+        ArrayList<Transition> row = kept.get("s1");
+        String expected = row.toString();
+        bddService.intern(bddService.getOne());    // not() below interns true outside a query
+        bddService.gc();
+        String statistics = bddService.getStatistics();
+        String before = statistics.substring(statistics.indexOf(" conditions="), statistics.indexOf('/', statistics.indexOf(" conditions=")));
+        ArrayList<ResultSet> results = new ArrayList<ResultSet>();
+        for(int i = 1; i <= 20; i++){
+            results.add(mdpf.sat("U" + i + "$True$send"));
+            results.add(mdpf.sat("|@$wait F" + i + "$try"));
+            results.add(mdpf.sat("&~@$send U" + i + "~$wait$send"));
+        }
+        Assert.assertTrue(bddService.queryConditionCount() > 0);
+        Assert.assertEquals(bddService.gc(), 0);
+        Assert.assertEquals(row.toString(), expected);
+        for(ResultSet result : results)
+            result.not();    // rows refer to true or to nothing now
+        Assert.assertTrue(bddService.gc() > 0);
+        statistics = bddService.getStatistics();
+        Assert.assertTrue(statistics.contains(before + "/"));
+        Assert.assertEquals(row.toString(), expected);
+        Assert.assertTrue(kept.equals(mdpf.sat("F2$send")));
+    }
+
+    @Test
+    public void testPrintingKeepsNoNodes(){
+        System.out.println("Test node use of printing and enumerating conditions.");
+        String[] variables = new String[12];
+        for(int i = 0; i < variables.length; i++)
+            variables[i] = "P" + i;
+        BDDService bddService = new BDDService(variables, 1000, 100);
+        CubeVisitor visitor = new CubeVisitor() {
+            public boolean visit(byte[] cube){
+                return true;
+            }
+        };
+        String statistics = bddService.getStatistics();
+        String tableSize = statistics.substring(statistics.indexOf('/'), statistics.indexOf(' '));
+        for(int i = 0; i < 2000; i++){
+            bddService.beginQuery();
+            try {
+                boolean[] first = new boolean[variables.length];
+                boolean[] second = new boolean[variables.length];
+                for(int v = 0; v < variables.length; v++){
+                    first[v] = (i >> v & 1) == 1;
+                    second[v] = (i + 1 >> v & 1) == 1;
+                }
+                BDD condition = bddService.or(bddService.product(first), bddService.product(second));
+                bddService.intern(condition);
+                Assert.assertFalse(bddService.toSharedString(condition).isEmpty());
+                Assert.assertFalse(bddService.toString(condition).isEmpty());
+                Assert.assertFalse(bddService.cover(condition).isEmpty());
+                Assert.assertTrue(bddService.forEachCube(condition, visitor));
+            }finally{
+                bddService.endQuery();
+            }
+            bddService.gc();
+        }
+        statistics = bddService.getStatistics();
+        Assert.assertEquals(statistics.substring(statistics.indexOf('/'), statistics.indexOf(' ')), tableSize);
+    }
+
+    @Test
+    public void testADDCollect(){
+        System.out.println("Test collection of ADD nodes.");
+        ADD add = new ADD();
+        int[] roots = {add.apply(ADD.PLUS, add.variable(0), add.constant(2))};
+        double[] expected = add.values(roots[0]);
+        for(int v = 1; v < 20; v++)
+            add.apply(ADD.TIMES, add.variable(v), add.constant(v));
+        int size = add.size();
+        Assert.assertTrue(add.collect(roots) > 0);
+        Assert.assertTrue(add.size() < size);
+        Assert.assertEquals(java.util.Arrays.toString(add.values(roots[0])), java.util.Arrays.toString(expected));
+        Assert.assertEquals(add.apply(ADD.PLUS, add.variable(0), add.constant(2)), roots[0]);
+        Assert.assertEquals(add.collectIfGrown(roots), 0);
+    }
+
+    @Test
+    public void testQueryServer() throws java.io.IOException {
+        System.out.println("Test query daemon.");
+        QueryServer server = new QueryServer(0, 1000);
+        server.start();
+        java.net.Socket socket = new java.net.Socket("127.0.0.1", server.getPort());
+        java.io.BufferedReader in = new java.io.BufferedReader(new java.io.InputStreamReader(socket.getInputStream(), "UTF-8"));
+        java.io.Writer out = new java.io.OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+        String path = getClass().getResource("/MDPFInput.json").getPath();
+        out.write("{\"op\": \"load\", \"model\": \"" + path + "\"}\n");
+        out.write("{\"op\": \"sat\", \"model\": \"" + path + "\", \"formula\": \"@$send\"}\n");
+        out.write("{\"op\": \"sat\", \"model\": \"" + path + "\", \"formulas\": [\"@$send\", \"$send\"]}\n");
+        out.write("{\"op\": \"sat\", \"model\": \"" + path + "\", \"formula\": \"@@\"}\n");
+        out.write("{\"op\": \"stats\"}\n");
+        out.write("{\"op\": \"shutdown\"}\n");
+        out.flush();
+        Assert.assertTrue(in.readLine().matches("\\{\"ok\":true,\"hash\":\"[0-9a-f]{40}\",\"states\":5,.*\"cached\":false\\}"));
+        String result = in.readLine();
+        Assert.assertTrue(result.startsWith("{\"ok\":true,\"result\":{\"s0\":[],\"s1\":[{\"condition\":\"B\",\"probability\":0.8}"));
+        Assert.assertTrue(in.readLine().startsWith("{\"ok\":true,\"results\":[" + result.substring(result.indexOf("{\"s0"), result.indexOf(",\"converged\":true}")) + ","));
+        Assert.assertTrue(in.readLine().startsWith("{\"ok\":false,\"error\":"));
+        Assert.assertTrue(in.readLine().contains("\"models\":1,\"transitions\":" + mdpf.size() + ",\"maxTransitions\":1000,\"hits\":3,\"misses\":1"));
+        Assert.assertEquals(in.readLine(), "{\"ok\":true}");
+        socket.close();
+    }
+
+    @Test
+    public void testQueryServerChangedFile() throws java.io.IOException {
+        System.out.println("Test query daemon reloading changed models.");
+        java.io.File file = java.io.File.createTempFile("MDPFServed", ".json");
+        file.deleteOnExit();
+        String model = "{ \"Propositions\" : \"A B\", \"States\" : \"s0 s1\", \"Transitions\" : [ {\"Source\" : \"s0\", " +
+                "\"Destination\" : \"s1\", \"Label\" : \"go\", \"Probability\" : 1, \"ApplicationCondition\" : \"A\"} ] }";
+        java.io.FileWriter writer = new java.io.FileWriter(file);
+        writer.write(model);
+        writer.close();
+        QueryServer server = new QueryServer(0, 1000);
+        String request = "{\"op\": \"sat\", \"model\": \"" + file.getPath() + "\", \"formula\": \"@$True\"}";
+        java.util.Map<String, Object> response = new java.util.LinkedHashMap<String, Object>();
+        server.handle(request, response);
+        Assert.assertTrue(response.get("result").toString().contains("condition=A"));
+        long modified = file.lastModified();
+        writer = new java.io.FileWriter(file);
+        writer.write(model.replace("\"A\"}", "\"B\"}"));    // same length, likely the same modification time
+        writer.close();
+        response.clear();
+        server.handle(request, response);
+        Assert.assertTrue(response.get("result").toString().contains("condition=B"));
+        file.setLastModified(modified + 4000);
+        server.handle(request, response);
+        file.setLastModified(modified - 10000);
+        server.handle(request, response);
+        server.handle(request, response);    // old modification time, not hashed
+        response.clear();
+        server.handle("{\"op\": \"stats\"}", response);
+        Assert.assertEquals(response.get("models"), 1);
+        Assert.assertEquals(response.get("misses"), 2L);
+        Assert.assertEquals(response.get("hits"), 3L);
+        Assert.assertEquals(response.get("hashes"), 4L);
+        Assert.assertTrue(response.get("bdds").toString().contains(" conditions="));
+        server.close();
+    }
+
 }